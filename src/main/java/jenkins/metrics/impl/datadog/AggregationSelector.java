@@ -0,0 +1,119 @@
+package jenkins.metrics.impl.datadog;
+
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.AggregationRule;
+import org.coursera.metrics.datadog.DatadogReporter.Expansion;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Selects the metrics which are rolled up into a single DogStatsD distribution or histogram by an
+ * {@link AggregationRule}.
+ * <p>
+ * A rule pattern holds one {@code *}, matching one or more name segments: with {@code jenkins.job.*.duration},
+ * {@code jenkins.job.folder.build.duration} is sent as a value of {@code jenkins.job.duration} tagged with
+ * {@code job:folder.build}, the tag being named after the segment before the {@code *} unless the rule names it.
+ * The first matching rule is used.
+ */
+final class AggregationSelector {
+
+    static final String WILDCARD = "*";
+
+    static final AggregationSelector NONE = new AggregationSelector(new ArrayList<>());
+
+    private final List<Rule> rules = new ArrayList<>();
+
+    AggregationSelector(List<AggregationRule> aggregationRules) {
+        for (AggregationRule rule : aggregationRules) {
+            if (isValidPattern(rule.getPattern())) {
+                rules.add(new Rule(rule));
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * @return how the metric is aggregated, or {@code null} when it is sent as is
+     */
+    Aggregation select(String name) {
+        for (Rule rule : rules) {
+            if (name.length() > rule.prefix.length() + rule.suffix.length()
+                    && name.startsWith(rule.prefix) && name.endsWith(rule.suffix)) {
+                String segment = name.substring(rule.prefix.length(), name.length() - rule.suffix.length());
+                return new Aggregation(rule.name, rule.tag + ":" + TagExtractor.toTagValue(segment), rule.type,
+                        rule.statistic);
+            }
+        }
+        return null;
+    }
+
+    static boolean isValidPattern(String pattern) {
+        if (pattern == null) return false;
+        int wildcard = pattern.indexOf(WILDCARD);
+        return wildcard >= 0 && wildcard == pattern.lastIndexOf(WILDCARD) && pattern.length() > 1;
+    }
+
+    /**
+     * @return the name segment before the wildcard of the pattern, or {@link AggregationRule#DEFAULT_TAG} when
+     * there is none
+     */
+    static String defaultTag(String pattern) {
+        int wildcard = pattern != null ? pattern.indexOf(WILDCARD) : -1;
+        if (wildcard <= 0 || pattern.charAt(wildcard - 1) != '.') return AggregationRule.DEFAULT_TAG;
+        String segment = pattern.substring(pattern.lastIndexOf('.', wildcard - 2) + 1, wildcard - 1);
+        return segment.isEmpty() ? AggregationRule.DEFAULT_TAG : segment;
+    }
+
+    /**
+     * @return the statistic sent for histograms, meters and timers, or {@code null} when the name is not an
+     * expansion
+     */
+    static Expansion parseStatistic(String statistic) {
+        EnumSet<Expansion> parsed = ExpansionSelector.parse(statistic, null);
+        return parsed.size() == 1 ? parsed.iterator().next() : null;
+    }
+
+    private static final class Rule {
+        private final String prefix;
+        private final String suffix;
+        private final String name;
+        private final String tag;
+        private final AggregationType type;
+        private final Expansion statistic;
+
+        Rule(AggregationRule rule) {
+            String pattern = rule.getPattern();
+            int wildcard = pattern.indexOf(WILDCARD);
+            this.prefix = pattern.substring(0, wildcard);
+            this.suffix = pattern.substring(wildcard + 1);
+            String head = prefix.endsWith(".") ? prefix.substring(0, prefix.length() - 1) : prefix;
+            String tail = head.isEmpty() && suffix.startsWith(".") ? suffix.substring(1) : suffix;
+            this.name = head + tail;
+            this.tag = rule.getTag();
+            this.type = rule.getType();
+            Expansion parsed = parseStatistic(rule.getStatistic());
+            this.statistic = parsed != null ? parsed : Expansion.MEAN;
+        }
+    }
+
+    /**
+     * Series into which a metric is aggregated.
+     */
+    static final class Aggregation {
+        final String name;
+        final String tag;
+        final AggregationType type;
+        final Expansion statistic;
+
+        Aggregation(String name, String tag, AggregationType type, Expansion statistic) {
+            this.name = name;
+            this.tag = tag;
+            this.type = type;
+            this.statistic = statistic;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package jenkins.metrics.impl.datadog;
+
+/**
+ * DogStatsD type of the series into which matching metrics are aggregated.
+ */
+public enum AggregationType {
+
+    /**
+     * Percentiles are computed by DataDog over the values of all the agents, {@code d} lines.
+     */
+    DISTRIBUTION('d') {
+        @Override
+        public String getDisplayName() {
+            return Messages.AggregationType_DISTRIBUTION();
+        }
+    },
+
+    /**
+     * Percentiles are computed by the agent receiving the values, {@code h} lines.
+     */
+    HISTOGRAM('h') {
+        @Override
+        public String getDisplayName() {
+            return Messages.AggregationType_HISTOGRAM();
+        }
+    };
+
+    private final char symbol;
+
+    AggregationType(char symbol) {
+        this.symbol = symbol;
+    }
+
+    char getSymbol() {
+        return symbol;
+    }
+
+    public abstract String getDisplayName();
+}
@@ -0,0 +1,321 @@
+package jenkins.metrics.impl.datadog;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
+import jenkins.util.SystemProperties;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends encoded batches from a dedicated thread, so that a slow channel or a stalled host lookup never delays
+ * reports.
+ * <p>
+ * Batches wait in a bounded lock-free queue: a {@link ConcurrentLinkedQueue} whose size is tracked by an atomic
+ * counter. When it is full, the {@link OverflowPolicy} decides which batch is dropped. Batches are direct buffers
+ * taken from a pool by {@link #acquire()} and given back once sent or dropped, so that neither the reporting thread
+ * nor the sender thread allocate or copy them. Sent and dropped batches are
+ * counted by the metrics of this {@link MetricSet}, along with the bytes sent and the time spent writing.
+ * <p>
+ * With a {@link SpillQueue}, batches which fail to be written are spilled to disk instead of being lost. They are
+ * replayed oldest first once a batch is written again, one per replay interval and only while no new batch waits,
+ * so that a recovering agent or intake is not flooded.
+ */
+class AsyncSender implements MetricSet {
+
+    private static final Logger LOGGER = Logger.getLogger(AsyncSender.class.getName());
+
+    static final int DEFAULT_CAPACITY = 1024;
+
+    static final long REPLAY_INTERVAL_MILLIS =
+            SystemProperties.getLong(AsyncSender.class.getName() + ".replayIntervalMillis", 200L);
+
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Channel written by the sender thread only.
+     */
+    interface Channel {
+
+        /**
+         * Opens the channel if needed, called before each write.
+         */
+        void open() throws IOException;
+
+        /**
+         * @return whether the batch was sent, or dropped because the channel could not accept it
+         */
+        boolean write(ByteBuffer batch) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    private final String name;
+    private final Channel channel;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final int maxBatchSize;
+    private final SpillQueue spill;
+    private final long replayIntervalNanos;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    // at most the queued batches, the one being sent and the one being filled are out of the pool
+    private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+
+    private final Counter sent = new Counter();
+    private final Counter sentBytes = new Counter();
+    private final Timer writes = new Timer();
+    private final Counter droppedFromQueue = new Counter();
+    private final Counter droppedBySocket = new Counter();
+    private final Counter errors = new Counter();
+
+    private Thread thread;
+    private volatile boolean closed;
+    private boolean failing;
+    private long nextReplay;
+
+    /**
+     * @param name name of the sender thread
+     * @param maxBatchSize size in bytes of the largest batch
+     * @param capacity maximum number of queued batches
+     */
+    AsyncSender(String name, Channel channel, int maxBatchSize, int capacity, OverflowPolicy overflowPolicy) {
+        this(name, channel, maxBatchSize, capacity, overflowPolicy, null, REPLAY_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param spill where batches which cannot be sent are kept, or {@code null} to drop them
+     * @param replayIntervalMillis time between two replayed batches
+     */
+    AsyncSender(String name, Channel channel, int maxBatchSize, int capacity, OverflowPolicy overflowPolicy,
+                SpillQueue spill, long replayIntervalMillis) {
+        this.name = name;
+        this.channel = channel;
+        this.capacity = capacity > 0 ? capacity : DEFAULT_CAPACITY;
+        this.overflowPolicy = overflowPolicy;
+        this.maxBatchSize = maxBatchSize;
+        this.spill = spill;
+        this.replayIntervalNanos = TimeUnit.MILLISECONDS.toNanos(replayIntervalMillis);
+    }
+
+    /**
+     * @return an empty direct buffer of the maximum batch size, to be filled then passed to {@link #offer(ByteBuffer)}
+     */
+    ByteBuffer acquire() {
+        ByteBuffer batch = pool.poll();
+        if (batch == null) {
+            return ByteBuffer.allocateDirect(maxBatchSize);
+        }
+        batch.clear();
+        return batch;
+    }
+
+    private void release(ByteBuffer batch) {
+        // buffers wrapping an array do not come from the pool
+        if (batch.isDirect()) {
+            pool.add(batch);
+        }
+    }
+
+    /**
+     * Queues a batch, which must not be modified afterwards.
+     */
+    void offer(byte[] batch) {
+        offer(ByteBuffer.wrap(batch));
+    }
+
+    /**
+     * Queues a batch ready to be read, which belongs to the sender afterwards.
+     */
+    void offer(ByteBuffer batch) {
+        if (closed) {
+            release(batch);
+            return;
+        }
+        if (size.incrementAndGet() > capacity) {
+            if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                size.decrementAndGet();
+                droppedFromQueue.inc();
+                release(batch);
+                return;
+            }
+            ByteBuffer oldest = queue.poll();
+            if (oldest != null) {
+                size.decrementAndGet();
+                droppedFromQueue.inc();
+                release(oldest);
+            }
+        }
+        queue.add(batch);
+        LockSupport.unpark(startIfNeeded());
+    }
+
+    private synchronized Thread startIfNeeded() {
+        if (thread == null) {
+            thread = new Thread(this::run, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return thread;
+    }
+
+    /**
+     * Sends the queued batches then stops the sender thread, waiting for it up to the given time.
+     */
+    void close(long timeout, TimeUnit unit) {
+        closed = true;
+        Thread t;
+        synchronized (this) {
+            t = thread;
+        }
+        if (t == null) {
+            closeChannel();
+            return;
+        }
+        LockSupport.unpark(t);
+        try {
+            t.join(unit.toMillis(timeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            ByteBuffer batch = queue.poll();
+            if (batch == null) {
+                if (closed) break;
+                LockSupport.parkNanos(this, replay());
+                continue;
+            }
+            size.decrementAndGet();
+            if (!send(batch) && spill != null) {
+                spill.add(toBytes(batch));
+            }
+            release(batch);
+        }
+        closeChannel();
+    }
+
+    /**
+     * Sends the oldest spilled batch if the channel works and the replay interval elapsed.
+     *
+     * @return nanoseconds to wait before the next replay, or for new batches
+     */
+    private long replay() {
+        if (spill == null || failing || spill.isEmpty()) return IDLE_NANOS;
+        long wait = nextReplay - System.nanoTime();
+        if (wait > 0) return wait;
+        byte[] batch = spill.peek();
+        // the batch size may have been reduced since the batch was spilled
+        if (batch != null && (batch.length > maxBatchSize || send(ByteBuffer.wrap(batch)))) {
+            spill.remove();
+        }
+        nextReplay = System.nanoTime() + replayIntervalNanos;
+        return replayIntervalNanos;
+    }
+
+    /**
+     * @return whether the channel was written, even if it dropped the batch
+     */
+    private boolean send(ByteBuffer batch) {
+        int length = batch.remaining();
+        long start = System.nanoTime();
+        try {
+            channel.open();
+            if (channel.write(batch)) {
+                sent.inc();
+                sentBytes.inc(length);
+            } else {
+                droppedBySocket.inc();
+            }
+            failing = false;
+            return true;
+        } catch (IOException | RuntimeException e) {
+            errors.inc();
+            // only log the first error of a series of failures
+            LOGGER.log(failing ? Level.FINE : Level.WARNING, "Error sending metrics to DataDog from " + name, e);
+            failing = true;
+            return false;
+        } finally {
+            writes.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * @return the whole content of a batch, which may have been read by the channel
+     */
+    private static byte[] toBytes(ByteBuffer batch) {
+        ByteBuffer content = batch.duplicate();
+        content.rewind();
+        byte[] bytes = new byte[content.remaining()];
+        content.get(bytes);
+        return bytes;
+    }
+
+    private void closeChannel() {
+        if (spill != null) {
+            spill.close();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error closing DataDog channel of " + name, e);
+        }
+    }
+
+    int getQueueSize() {
+        return size.get();
+    }
+
+    long getSent() {
+        return sent.getCount();
+    }
+
+    long getSentBytes() {
+        return sentBytes.getCount();
+    }
+
+    /**
+     * @return time spent opening the channel and writing to it
+     */
+    Timer getWrites() {
+        return writes;
+    }
+
+    long getDropped() {
+        return droppedFromQueue.getCount() + droppedBySocket.getCount();
+    }
+
+    long getErrors() {
+        return errors.getCount();
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("sent", sent);
+        metrics.put("sent.bytes", sentBytes);
+        metrics.put("write", writes);
+        metrics.put("dropped.queue", droppedFromQueue);
+        metrics.put("dropped.socket", droppedBySocket);
+        metrics.put("errors", errors);
+        metrics.put("queue.size", (Gauge<Integer>) this::getQueueSize);
+        if (spill != null) {
+            metrics.putAll(spill.getMetrics());
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,159 @@
+package jenkins.metrics.impl.datadog;
+
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DogStatsD transport packing as many series as possible in each datagram.
+ * <p>
+ * Series are encoded by a {@link DogStatsdEncoder} and appended as newline separated lines into a direct buffer of
+ * the {@link AsyncSender}, which is handed over once the next line would not fit in the maximum packet size and
+ * given back to its pool once sent: the reporting thread only encodes, while opening, resolving and writing the
+ * underlying channel happen on the sender thread.
+ * <p>
+ * Without batching, each series is sent in its own datagram, as the coursera {@code UdpTransport} does.
+ */
+abstract class BatchingDatagramTransport implements SeriesTransport, MetricSet {
+
+    private static final long CLOSE_TIMEOUT_SECONDS = 5;
+
+    private final int maxPacketSize;
+    private ByteBuffer buffer;
+    private List<String> tags;
+    private DogStatsdEncoder encoder;
+    private final boolean batch;
+    private final AsyncSender sender;
+
+    /**
+     * @param name describes the target of the datagrams
+     * @param tags tags added to every series, as {@code key:value}
+     * @param maxPacketSize maximum size of a datagram payload in bytes
+     * @param batch whether series are packed into datagrams, instead of one datagram per series
+     * @param queueCapacity maximum number of datagrams waiting to be sent
+     */
+    BatchingDatagramTransport(String name, List<String> tags, int maxPacketSize, boolean batch, int queueCapacity,
+                              OverflowPolicy overflowPolicy) {
+        this.maxPacketSize = maxPacketSize;
+        this.tags = tags;
+        this.encoder = new DogStatsdEncoder(tags, maxPacketSize);
+        this.batch = batch;
+        this.sender = new AsyncSender("DataDog sender to " + name, new AsyncSender.Channel() {
+            @Override
+            public void open() throws IOException {
+                BatchingDatagramTransport.this.open();
+            }
+
+            @Override
+            public boolean write(ByteBuffer batch) throws IOException {
+                return BatchingDatagramTransport.this.write(batch);
+            }
+
+            @Override
+            public void close() throws IOException {
+                BatchingDatagramTransport.this.closeChannel();
+            }
+        }, maxPacketSize, queueCapacity, overflowPolicy);
+    }
+
+    /**
+     * Opens the underlying channel if needed, called from the sender thread.
+     */
+    protected abstract void open() throws IOException;
+
+    /**
+     * Sends one datagram, called from the sender thread.
+     *
+     * @return whether the datagram was sent, or dropped because the channel could not accept it
+     */
+    protected abstract boolean write(ByteBuffer packet) throws IOException;
+
+    /**
+     * Closes the underlying channel, called from the sender thread once the queued datagrams are sent.
+     */
+    protected abstract void closeChannel() throws IOException;
+
+    @Override
+    public void setTags(List<String> tags) {
+        if (!tags.equals(this.tags)) {
+            this.tags = tags;
+            encoder = new DogStatsdEncoder(tags, maxPacketSize);
+        }
+    }
+
+    @Override
+    public void begin(long timestamp) {
+        if (buffer == null) {
+            buffer = sender.acquire();
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void gauge(String name, String tags, long value) {
+        append(encoder.gauge(name, tags, value));
+    }
+
+    @Override
+    public void gauge(String name, String tags, double value) {
+        append(encoder.gauge(name, tags, value));
+    }
+
+    @Override
+    public void count(String name, String tags, long delta) {
+        append(encoder.count(name, tags, delta));
+    }
+
+    @Override
+    public void sample(String name, double value, AggregationType type, String tag) {
+        append(encoder.sample(name, value, type, tag));
+    }
+
+    @Override
+    public void end() {
+        flush();
+    }
+
+    /**
+     * Sends the queued datagrams and closes the underlying channel.
+     */
+    @Override
+    public void close() throws IOException {
+        sender.close(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    AsyncSender getSender() {
+        return sender;
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        return sender.getMetrics();
+    }
+
+    private void append(ByteBuffer line) {
+        if (line == null) return;
+        if (buffer.position() > 0 && line.remaining() + 1 > buffer.remaining()) {
+            flush();
+        }
+        if (buffer.position() > 0) {
+            buffer.put((byte) '\n');
+        }
+        buffer.put(line);
+        if (!batch) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (buffer.position() == 0) return;
+        buffer.flip();
+        sender.offer(buffer);
+        buffer = sender.acquire();
+    }
+}
@@ -0,0 +1,99 @@
+package jenkins.metrics.impl.datadog;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+
+/**
+ * {@link BatchingDatagramTransport} sending UDP datagrams.
+ * <p>
+ * Unless configured, the maximum packet size is {@link #DEFAULT_MAX_PACKET_SIZE}, small enough to avoid
+ * fragmentation on usual networks, or {@link #LOOPBACK_MAX_PACKET_SIZE} when the agent host is a loopback name or
+ * address. The host is only resolved by the sender thread through a {@link HostResolver}, and the channel is connected
+ * again whenever the resolver picks up a new address.
+ */
+class BatchingUdpTransport extends BatchingDatagramTransport {
+
+    static final int DEFAULT_MAX_PACKET_SIZE = 1432;
+    static final int LOOPBACK_MAX_PACKET_SIZE = 8192;
+    static final int MAX_PACKET_SIZE = 65507;
+
+    private final String host;
+    private final int port;
+    private final HostResolver resolver;
+
+    private DatagramChannel channel;
+    private InetAddress connected;
+
+    /**
+     * @param tags tags added to every series, as {@code key:value}
+     * @param maxPacketSize maximum size of a datagram payload in bytes, or 0 to pick it from the target host
+     */
+    BatchingUdpTransport(String host, int port, List<String> tags, int maxPacketSize) {
+        this(host, port, tags, maxPacketSize, true, AsyncSender.DEFAULT_CAPACITY, OverflowPolicy.DROP_OLDEST,
+                new HostResolver());
+    }
+
+    /**
+     * @param tags tags added to every series, as {@code key:value}
+     * @param maxPacketSize maximum size of a datagram payload in bytes, or 0 to pick it from the target host
+     * @param batch whether series are packed into datagrams, instead of one datagram per series
+     * @param queueCapacity maximum number of datagrams waiting to be sent
+     * @param resolver resolves the host, possibly shared with other transports
+     */
+    BatchingUdpTransport(String host, int port, List<String> tags, int maxPacketSize, boolean batch,
+                         int queueCapacity, OverflowPolicy overflowPolicy, HostResolver resolver) {
+        super(host + ":" + port, tags, packetSize(host, maxPacketSize), batch, queueCapacity, overflowPolicy);
+        this.host = host;
+        this.port = port;
+        this.resolver = resolver;
+    }
+
+    private static int packetSize(String host, int maxPacketSize) {
+        if (maxPacketSize > 0) return Math.min(maxPacketSize, MAX_PACKET_SIZE);
+        return isLoopback(host) ? LOOPBACK_MAX_PACKET_SIZE : DEFAULT_MAX_PACKET_SIZE;
+    }
+
+    /**
+     * @return whether the host is a loopback name or address, without resolving it
+     */
+    static boolean isLoopback(String host) {
+        return host != null && (host.equalsIgnoreCase("localhost") || host.startsWith("127.") || host.equals("::1"));
+    }
+
+    @Override
+    protected void open() throws IOException {
+        InetAddress address = resolver.resolve(host);
+        if (channel != null) {
+            if (address.equals(connected)) return;
+            closeChannel();
+        }
+        DatagramChannel newChannel = DatagramChannel.open();
+        try {
+            newChannel.connect(new InetSocketAddress(address, port));
+        } catch (IOException e) {
+            newChannel.close();
+            throw e;
+        }
+        channel = newChannel;
+        connected = address;
+    }
+
+    @Override
+    protected boolean write(ByteBuffer packet) throws IOException {
+        channel.write(packet);
+        return true;
+    }
+
+    @Override
+    protected void closeChannel() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            connected = null;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package jenkins.metrics.impl.datadog;
+
+import jnr.constants.platform.Errno;
+import jnr.ffi.LastError;
+import jnr.unixsocket.UnixDatagramChannel;
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketOptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * {@link BatchingDatagramTransport} sending datagrams to a DogStatsD unix domain socket.
+ * <p>
+ * When the socket buffer is full, either the datagram is dropped right away, or the sender thread waits up to the
+ * configured send timeout for room before dropping it, letting datagrams queue up instead of losing series.
+ * Datagrams are sent to the socket path rather than through a connected channel, so that a restarted agent is
+ * reached again without reopening the channel.
+ */
+class BatchingUdsTransport extends BatchingDatagramTransport {
+
+    static final int DEFAULT_MAX_PACKET_SIZE = 8192;
+    static final int MAX_PACKET_SIZE = 65536;
+
+    private final UnixSocketAddress address;
+    private final int sendTimeout;
+
+    private UnixDatagramChannel channel;
+
+    /**
+     * @param tags tags added to every series, as {@code key:value}
+     * @param maxPacketSize maximum size of a datagram in bytes, or 0 for {@link #DEFAULT_MAX_PACKET_SIZE}
+     * @param sendTimeout milliseconds to wait for room in a full socket buffer, or 0 to drop datagrams right away
+     */
+    BatchingUdsTransport(String socketPath, List<String> tags, int maxPacketSize, int sendTimeout) {
+        this(socketPath, tags, maxPacketSize, sendTimeout, AsyncSender.DEFAULT_CAPACITY, OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * @param tags tags added to every series, as {@code key:value}
+     * @param maxPacketSize maximum size of a datagram in bytes, or 0 for {@link #DEFAULT_MAX_PACKET_SIZE}
+     * @param sendTimeout milliseconds to wait for room in a full socket buffer, or 0 to drop datagrams right away
+     * @param queueCapacity maximum number of datagrams waiting to be sent
+     */
+    BatchingUdsTransport(String socketPath, List<String> tags, int maxPacketSize, int sendTimeout, int queueCapacity,
+                         OverflowPolicy overflowPolicy) {
+        super(socketPath, tags, maxPacketSize > 0 ? Math.min(maxPacketSize, MAX_PACKET_SIZE) : DEFAULT_MAX_PACKET_SIZE,
+                true, queueCapacity, overflowPolicy);
+        this.address = new UnixSocketAddress(new File(socketPath));
+        this.sendTimeout = sendTimeout;
+    }
+
+    @Override
+    protected void open() throws IOException {
+        if (channel == null) {
+            UnixDatagramChannel newChannel = UnixDatagramChannel.open();
+            try {
+                if (sendTimeout > 0) {
+                    newChannel.setOption(UnixSocketOptions.SO_SNDTIMEO, sendTimeout);
+                } else {
+                    newChannel.configureBlocking(false);
+                }
+            } catch (IOException e) {
+                newChannel.close();
+                throw e;
+            }
+            channel = newChannel;
+        }
+    }
+
+    @Override
+    protected boolean write(ByteBuffer packet) throws IOException {
+        try {
+            // nothing is sent by a non blocking channel when the socket buffer is full
+            return channel.send(packet, address) > 0;
+        } catch (IOException e) {
+            if (isBufferFull()) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * jnr-unixsocket only puts the error string in the exception, so the errno left by the failed send on this thread
+     * is read instead, which does not depend on the locale.
+     *
+     * @return whether the error is the send timeout expiring (EAGAIN) or the kernel running out of buffers (ENOBUFS)
+     */
+    private static boolean isBufferFull() {
+        Errno errno = Errno.valueOf(LastError.getLastError(jnr.ffi.Runtime.getSystemRuntime()));
+        return errno == Errno.EAGAIN || errno == Errno.EWOULDBLOCK || errno == Errno.ENOBUFS;
+    }
+
+    @Override
+    protected void closeChannel() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package jenkins.metrics.impl.datadog;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
+import org.coursera.metrics.datadog.DatadogReporter.Expansion;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caps the number of series an endpoint reports, over the {@link FilteredMetricRegistry} of the endpoint and those of
+ * its rate classes.
+ * <p>
+ * Metrics accepted by the filter of a registry are admitted while the series they are sent as fit in the series
+ * budget of the endpoint: one for a gauge, a counter or an aggregated metric, one per {@link Expansion} for a
+ * histogram, a meter or a timer. Past it, new metrics are rejected while the admitted ones keep being reported, so
+ * that a plugin or a burst of ephemeral agents registering metrics by the thousand does not inflate reports and the
+ * DataDog bill. Rejected metrics wait for a removed metric to free enough room, and are then added to their registry
+ * in the order they came.
+ * <p>
+ * Admitted and waiting metrics are only references to metrics the source registry already holds. The waiting ones
+ * are counted in the metrics of this {@link MetricSet} and raise the {@link SeriesBudgetMonitor}.
+ */
+class CardinalityGuard implements MetricSet {
+
+    private static final Logger LOGGER = Logger.getLogger(CardinalityGuard.class.getName());
+
+    private static final EnumSet<Expansion> RATES = EnumSet.of(Expansion.RATE_MEAN, Expansion.RATE_1_MINUTE,
+            Expansion.RATE_5_MINUTE, Expansion.RATE_15_MINUTE);
+
+    private final int budget;
+    private final ExpansionSelector expansions;
+    private final AggregationSelector aggregations;
+    private final Map<String, Admission> admitted = new HashMap<>();
+    private final Map<String, Admission> waiting = new LinkedHashMap<>();
+    private int series;
+    private volatile boolean warned;
+    private volatile String lastRejected;
+
+    /**
+     * @param budget maximum number of series admitted
+     */
+    CardinalityGuard(int budget, ExpansionSelector expansions, AggregationSelector aggregations) {
+        this.budget = budget;
+        this.expansions = expansions;
+        this.aggregations = aggregations;
+    }
+
+    /**
+     * Called when a metric matching the filter of {@code registry} is added to the source registry. The metric is
+     * added to {@code registry} when it fits in the budget, otherwise once there is room for it.
+     */
+    synchronized void admit(String name, Metric metric, FilteredMetricRegistry registry) {
+        // a registry replacing another one of the endpoint takes over its metrics
+        Admission previous = admitted.get(name);
+        if (previous != null) {
+            admitted.put(name, new Admission(metric, registry, previous.series));
+            registry.admitted(name, metric);
+            return;
+        }
+        Admission admission = new Admission(metric, registry, series(name, metric));
+        if (admit(name, admission)) {
+            waiting.remove(name);
+            return;
+        }
+        if (!warned) {
+            warned = true;
+            LOGGER.log(Level.WARNING, "DataDog endpoint reached its budget of {0} series, new metrics such as {1} are "
+                    + "not reported", new Object[]{budget, name});
+        }
+        waiting.put(name, admission);
+        lastRejected = name;
+    }
+
+    /**
+     * Called when a metric is removed from the source registry, by each registry sharing the guard. The metric is
+     * removed from the registry it was added to, and the waiting metrics fitting in the room it freed are added to
+     * their registry. Registries are only updated while holding the lock, so that a removal cannot run between the
+     * admission of a metric and its addition.
+     */
+    synchronized void removed(String name) {
+        Admission freed = admitted.remove(name);
+        if (freed == null) {
+            waiting.remove(name);
+            return;
+        }
+        freed.registry.remove(name);
+        series -= freed.series;
+        Iterator<Map.Entry<String, Admission>> it = waiting.entrySet().iterator();
+        while (it.hasNext() && series < budget) {
+            Map.Entry<String, Admission> entry = it.next();
+            if (admit(entry.getKey(), entry.getValue())) {
+                it.remove();
+            }
+        }
+    }
+
+    private boolean admit(String name, Admission admission) {
+        if (series + admission.series > budget) return false;
+        admitted.put(name, admission);
+        series += admission.series;
+        admission.registry.admitted(name, admission.metric);
+        return true;
+    }
+
+    /**
+     * @return number of series the metric is sent as
+     */
+    int series(String name, Metric metric) {
+        boolean histogram = metric instanceof Histogram;
+        if (!(histogram || metric instanceof Meter || metric instanceof Timer)) return 1;
+        if (aggregations.select(name) != null) return 1;
+        int count = 0;
+        for (Expansion expansion : expansions.select(name)) {
+            boolean rate = RATES.contains(expansion);
+            // histograms have no rates, and meters have nothing but their count and rates
+            if (histogram ? !rate : !(metric instanceof Meter) || rate || expansion == Expansion.COUNT) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    int getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return number of series admitted
+     */
+    synchronized int getAdmitted() {
+        return series;
+    }
+
+    /**
+     * @return number of metrics waiting for room in the budget
+     */
+    synchronized int getRejected() {
+        return waiting.size();
+    }
+
+    /**
+     * @return the last metric rejected, or {@code null}
+     */
+    String getLastRejected() {
+        return lastRejected;
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("series.budget", (Gauge<Integer>) this::getBudget);
+        metrics.put("series.admitted", (Gauge<Integer>) this::getAdmitted);
+        metrics.put("series.rejected", (Gauge<Integer>) this::getRejected);
+        return metrics;
+    }
+
+    private static final class Admission {
+        private final Metric metric;
+        private final FilteredMetricRegistry registry;
+        private final int series;
+
+        Admission(Metric metric, FilteredMetricRegistry registry, int series) {
+            this.metric = metric;
+            this.registry = registry;
+            this.series = series;
+        }
+    }
+}
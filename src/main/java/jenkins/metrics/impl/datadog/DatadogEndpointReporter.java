@@ -0,0 +1,523 @@
+package jenkins.metrics.impl.datadog;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import jenkins.metrics.impl.datadog.AggregationSelector.Aggregation;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.DataDogEndpoint;
+import jenkins.metrics.impl.datadog.MetricsSnapshot.Sample;
+import jenkins.metrics.impl.datadog.TagExtractor.Extraction;
+import org.coursera.metrics.datadog.DatadogReporter.Expansion;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reports the metrics selected by one {@link DataDogEndpoint} out of a shared {@link MetricsSnapshot}, expanding them
+ * into series the way the coursera {@code DatadogReporter} does, counts being sent as the increase since the previous
+ * report. Names are kept between reports, so that a report does not allocate once the metrics have been seen.
+ */
+class DatadogEndpointReporter {
+
+    private static final Logger LOGGER = Logger.getLogger(DatadogEndpointReporter.class.getName());
+
+    private static final double DURATION_FACTOR = 1.0 / TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final Expansion[] EXPANSIONS = Expansion.values();
+
+    private static final Aggregation NOT_AGGREGATED = new Aggregation(null, null, null, null);
+
+    private static final Extraction NOT_EXTRACTED = new Extraction(null, null);
+
+    private final String metricsPrefix;
+    private final int interval;
+    private final AtomicReference<Settings> settings;
+    private final ReportStats stats = new ReportStats();
+
+    // only used by the reporting thread
+    private final Map<String, Expanded> expanded = new HashMap<>();
+    private final Map<String, Aggregation> aggregated = new HashMap<>();
+    private final Map<String, Extraction> extracted = new HashMap<>();
+    private Settings current;
+    private int series;
+    private int skipped;
+
+    /**
+     * @param metricsPrefix prefix of the metrics about this endpoint, unique among endpoints
+     */
+    DatadogEndpointReporter(DataDogEndpoint endpoint, FilteredMetricRegistry metrics, SeriesTransport transport,
+                            ExpansionSelector expansions, String metricsPrefix) {
+        this(endpoint, metrics, transport, expansions, metricsPrefix, 0);
+    }
+
+    /**
+     * @param metricsPrefix prefix of the metrics about this endpoint, unique among endpoints
+     * @param interval seconds between two reports, or 0 for the report interval of the endpoint
+     */
+    DatadogEndpointReporter(DataDogEndpoint endpoint, FilteredMetricRegistry metrics, SeriesTransport transport,
+                            ExpansionSelector expansions, String metricsPrefix, int interval) {
+        this.metricsPrefix = metricsPrefix;
+        this.interval = interval;
+        this.settings = new AtomicReference<>(new Settings(endpoint, metrics, transport, expansions,
+                newUnchangedFilter(endpoint)));
+    }
+
+    /**
+     * Registers the {@link ReportStats} of the reporter and the metrics of its transport and {@link CardinalityGuard}
+     * under its metrics prefix.
+     */
+    void start() {
+        Settings s = settings.get();
+        s.metrics.attach();
+        registerMetrics(stats);
+        registerMetrics(s.transport);
+        registerMetrics(guard(s.metrics));
+    }
+
+    void stop() {
+        Settings s = settings.get();
+        s.metrics.detach();
+        unregisterMetrics(stats);
+        unregisterMetrics(s.transport);
+        unregisterMetrics(guard(s.metrics));
+        close(s);
+    }
+
+    /**
+     * Switches a started reporter to a new configuration of its endpoint, keeping its lane, its state and, when
+     * they are passed again, its filtered registry and its transport. New ones are started and the replaced ones
+     * stopped here. The next report uses the new configuration as a whole, the running one is not affected.
+     */
+    void reconfigure(DataDogEndpoint endpoint, FilteredMetricRegistry metrics, SeriesTransport transport,
+                     ExpansionSelector expansions) {
+        Settings previous = settings.get();
+        if (metrics != previous.metrics) {
+            metrics.attach();
+            unregisterMetrics(guard(previous.metrics));
+            registerMetrics(guard(metrics));
+        }
+        if (transport != previous.transport) {
+            unregisterMetrics(previous.transport);
+            registerMetrics(transport);
+        }
+        DataDogEndpoint previousEndpoint = previous.endpoint;
+        boolean sameSeries = previousEndpoint.isSkipUnchanged() == endpoint.isSkipUnchanged()
+                && previousEndpoint.getFullRefreshInterval() == endpoint.getFullRefreshInterval()
+                && previousEndpoint.getMergedTags().equals(endpoint.getMergedTags());
+        settings.set(new Settings(endpoint, metrics, transport, expansions,
+                sameSeries ? previous.unchanged : newUnchangedFilter(endpoint)));
+        if (metrics != previous.metrics) {
+            previous.metrics.detach();
+        }
+        if (transport != previous.transport) {
+            close(previous);
+        }
+    }
+
+    private static UnchangedSeriesFilter newUnchangedFilter(DataDogEndpoint endpoint) {
+        return endpoint.isSkipUnchanged() ? new UnchangedSeriesFilter(endpoint.getFullRefreshInterval()) : null;
+    }
+
+    /**
+     * @return the guard whose metrics are registered by this reporter, none for a rate class as it shares the guard
+     * of the endpoint
+     */
+    private CardinalityGuard guard(FilteredMetricRegistry metrics) {
+        return interval > 0 ? null : metrics.getGuard();
+    }
+
+    private void registerMetrics(Object metrics) {
+        if (metrics instanceof MetricSet) {
+            MetricRegistry registry = settings.get().metrics.getSource();
+            ((MetricSet) metrics).getMetrics().forEach((name, metric) ->
+                    registry.register(MetricRegistry.name(metricsPrefix, name), metric));
+        }
+    }
+
+    private void unregisterMetrics(Object metrics) {
+        if (metrics instanceof MetricSet) {
+            MetricRegistry registry = settings.get().metrics.getSource();
+            ((MetricSet) metrics).getMetrics().keySet().forEach(name ->
+                    registry.remove(MetricRegistry.name(metricsPrefix, name)));
+        }
+    }
+
+    private static void close(Settings s) {
+        try {
+            s.transport.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error closing DataDog transport for endpoint " + s.endpoint, e);
+        }
+    }
+
+    void report(MetricsSnapshot snapshot) {
+        Settings s = settings.get();
+        long start = System.nanoTime();
+        long evaluationStart = snapshot.getEvaluationNanos();
+        series = 0;
+        skipped = 0;
+        try {
+            if (s != current) {
+                // the transport may have been kept with other tags
+                s.transport.setTags(s.endpoint.getMergedTags());
+                if (current == null || current.aggregations != s.aggregations) {
+                    aggregated.clear();
+                }
+                if (current == null || current.extractions != s.extractions) {
+                    extracted.clear();
+                }
+                current = s;
+            }
+            Map<String, Metric> selected = s.metrics.getMetrics();
+            if (s.unchanged != null) s.unchanged.begin();
+            s.transport.begin(snapshot.getTimestamp(), snapshot.getInterval());
+            for (Map.Entry<String, Metric> entry : selected.entrySet()) {
+                report(snapshot, entry.getKey(), entry.getValue());
+            }
+            s.transport.end();
+            if (s.unchanged != null) s.unchanged.end();
+            prune(selected);
+            stats.record(snapshot.getTimestamp(), System.nanoTime() - start,
+                    snapshot.getEvaluationNanos() - evaluationStart, selected.size(), s.metrics.getFilteredOut(),
+                    series, skipped, snapshot.getSlowestName(), snapshot.getSlowestNanos());
+        } catch (Throwable e) {
+            LOGGER.log(Level.WARNING, "Error reporting metrics to DataDog endpoint " + s.endpoint, e);
+        }
+    }
+
+    private void report(MetricsSnapshot snapshot, String name, Metric metric) throws IOException {
+        if (!current.aggregations.isEmpty()) {
+            Aggregation aggregation = aggregated.get(name);
+            if (aggregation == null) {
+                aggregation = current.aggregations.select(name);
+                aggregated.put(name, aggregation != null ? aggregation : NOT_AGGREGATED);
+            }
+            if (aggregation != NOT_AGGREGATED) {
+                aggregate(snapshot, name, metric, aggregation);
+                return;
+            }
+        }
+        Extraction extraction = extraction(name);
+        if (metric instanceof Gauge) {
+            Object value = snapshot.getGaugeValue(name, (Gauge<?>) metric);
+            String sentName = extraction != null ? extraction.name : name;
+            String tags = extraction != null ? extraction.tags : null;
+            if (isIntegral(value)) {
+                gauge(name, sentName, tags, ((Number) value).longValue());
+            } else if (value instanceof Number) {
+                gauge(name, sentName, tags, ((Number) value).doubleValue());
+            }
+        } else if (metric instanceof Counter) {
+            // a Metrics counter can be decremented, so it is a DataDog gauge rather than a counter
+            gauge(name, extraction != null ? extraction.name : name, extraction != null ? extraction.tags : null,
+                    snapshot.getCount(name, (Counter) metric));
+        } else if (metric instanceof Histogram || metric instanceof Meter || metric instanceof Timer) {
+            Expanded metricExpansions = expanded(name);
+            metricExpansions.select(current.expansions);
+            metricExpansions.extract(extraction);
+            if (metricExpansions.expansions.isEmpty()) return;
+            Sample sample = snapshot.getSample(name, metric);
+            if (metricExpansions.expansions.contains(Expansion.COUNT)) {
+                long delta = metricExpansions.delta(sample.count);
+                if (current.unchanged == null || current.unchanged.changed(delta)) {
+                    current.transport.count(metricExpansions.sentName(Expansion.COUNT), metricExpansions.tags(),
+                            delta);
+                    series++;
+                } else {
+                    skipped++;
+                }
+            }
+            if (!(metric instanceof Histogram)) {
+                gauge(metricExpansions, Expansion.RATE_1_MINUTE, sample.oneMinuteRate);
+                gauge(metricExpansions, Expansion.RATE_5_MINUTE, sample.fiveMinuteRate);
+                gauge(metricExpansions, Expansion.RATE_15_MINUTE, sample.fifteenMinuteRate);
+                gauge(metricExpansions, Expansion.RATE_MEAN, sample.meanRate);
+            }
+            if (sample.snapshot != null) {
+                snapshot(metricExpansions, sample.snapshot, metric instanceof Timer ? DURATION_FACTOR : 1.0);
+            }
+        }
+    }
+
+    /**
+     * @return the expansions of the metric, which also keep the count sent last
+     */
+    private Expanded expanded(String name) {
+        Expanded metricExpansions = expanded.get(name);
+        if (metricExpansions == null) {
+            metricExpansions = new Expanded(name);
+            expanded.put(name, metricExpansions);
+        }
+        return metricExpansions;
+    }
+
+    /**
+     * @return the name and tags the metric is sent with when an extraction rule matches it, or {@code null}
+     */
+    private Extraction extraction(String name) {
+        if (current.extractions.isEmpty()) return null;
+        Extraction extraction = extracted.get(name);
+        if (extraction == null) {
+            extraction = current.extractions.extract(name);
+            extracted.put(name, extraction != null ? extraction : NOT_EXTRACTED);
+        }
+        return extraction != NOT_EXTRACTED ? extraction : null;
+    }
+
+    /**
+     * Sends the metric as one value of the distribution or histogram it is aggregated into.
+     */
+    private void aggregate(MetricsSnapshot snapshot, String name, Metric metric, Aggregation aggregation)
+            throws IOException {
+        double value;
+        if (metric instanceof Gauge) {
+            Object gaugeValue = snapshot.getGaugeValue(name, (Gauge<?>) metric);
+            if (!(gaugeValue instanceof Number)) return;
+            value = ((Number) gaugeValue).doubleValue();
+        } else if (metric instanceof Counter) {
+            value = snapshot.getCount(name, (Counter) metric);
+        } else if (metric instanceof Histogram || metric instanceof Meter || metric instanceof Timer) {
+            Sample sample = snapshot.getSample(name, metric);
+            if (aggregation.statistic == Expansion.COUNT) {
+                // like an expanded count, the value is the increase since the previous report
+                value = expanded(name).delta(sample.count);
+            } else {
+                value = statistic(sample, aggregation.statistic, metric instanceof Timer ? DURATION_FACTOR : 1.0);
+                if (Double.isNaN(value)) return;
+            }
+        } else {
+            return;
+        }
+        current.transport.sample(aggregation.name, value, aggregation.type, aggregation.tag);
+        series++;
+    }
+
+    /**
+     * @return the value of the expansion, or {@code NaN} when the metric does not have it
+     */
+    private static double statistic(Sample sample, Expansion expansion, double factor) {
+        Snapshot snapshot = sample.snapshot;
+        switch (expansion) {
+            case RATE_MEAN: return sample.meanRate;
+            case RATE_1_MINUTE: return sample.oneMinuteRate;
+            case RATE_5_MINUTE: return sample.fiveMinuteRate;
+            case RATE_15_MINUTE: return sample.fifteenMinuteRate;
+            default: break;
+        }
+        if (snapshot == null) return Double.NaN;
+        switch (expansion) {
+            case MIN: return snapshot.getMin() * factor;
+            case MAX: return snapshot.getMax() * factor;
+            case STD_DEV: return snapshot.getStdDev() * factor;
+            case MEDIAN: return snapshot.getMedian() * factor;
+            case P75: return snapshot.get75thPercentile() * factor;
+            case P95: return snapshot.get95thPercentile() * factor;
+            case P98: return snapshot.get98thPercentile() * factor;
+            case P99: return snapshot.get99thPercentile() * factor;
+            case P999: return snapshot.get999thPercentile() * factor;
+            default: return snapshot.getMean() * factor;
+        }
+    }
+
+    private void snapshot(Expanded metric, Snapshot snapshot, double factor) throws IOException {
+        gauge(metric, Expansion.MAX, snapshot.getMax() * factor);
+        gauge(metric, Expansion.MEAN, snapshot.getMean() * factor);
+        gauge(metric, Expansion.MIN, snapshot.getMin() * factor);
+        gauge(metric, Expansion.STD_DEV, snapshot.getStdDev() * factor);
+        gauge(metric, Expansion.MEDIAN, snapshot.getMedian() * factor);
+        gauge(metric, Expansion.P75, snapshot.get75thPercentile() * factor);
+        gauge(metric, Expansion.P95, snapshot.get95thPercentile() * factor);
+        gauge(metric, Expansion.P98, snapshot.get98thPercentile() * factor);
+        gauge(metric, Expansion.P99, snapshot.get99thPercentile() * factor);
+        gauge(metric, Expansion.P999, snapshot.get999thPercentile() * factor);
+    }
+
+    private void gauge(Expanded metric, Expansion expansion, double value) throws IOException {
+        if (metric.expansions.contains(expansion)) {
+            gauge(metric.name(expansion), metric.sentName(expansion), metric.tags(), value);
+        }
+    }
+
+    /**
+     * @param key name of the series before extraction, unique among the series of the endpoint
+     */
+    private void gauge(String key, String name, String tags, long value) throws IOException {
+        if (current.unchanged == null || current.unchanged.changed(key, value)) {
+            current.transport.gauge(name, tags, value);
+            series++;
+        } else {
+            skipped++;
+        }
+    }
+
+    private void gauge(String key, String name, String tags, double value) throws IOException {
+        if (current.unchanged == null || current.unchanged.changed(key, value)) {
+            current.transport.gauge(name, tags, value);
+            series++;
+        } else {
+            skipped++;
+        }
+    }
+
+    private static boolean isIntegral(Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+                || value instanceof AtomicInteger || value instanceof AtomicLong;
+    }
+
+    /**
+     * Forgets the expansions of removed metrics, once they make up most of the cached entries.
+     */
+    private void prune(Map<String, Metric> selected) {
+        if (expanded.size() > 2 * selected.size()) {
+            expanded.keySet().retainAll(selected.keySet());
+        }
+        if (aggregated.size() > 2 * selected.size()) {
+            aggregated.keySet().retainAll(selected.keySet());
+        }
+        if (extracted.size() > 2 * selected.size()) {
+            extracted.keySet().retainAll(selected.keySet());
+        }
+    }
+
+    DataDogEndpoint getEndpoint() {
+        return settings.get().endpoint;
+    }
+
+    ReportSchedule getSchedule() {
+        DataDogEndpoint endpoint = getEndpoint();
+        return interval > 0 ? endpoint.getSchedule(interval) : endpoint.getSchedule();
+    }
+
+    FilteredMetricRegistry getMetrics() {
+        return settings.get().metrics;
+    }
+
+    SeriesTransport getTransport() {
+        return settings.get().transport;
+    }
+
+    ReportStats getStats() {
+        return stats;
+    }
+
+    String getMetricsPrefix() {
+        return metricsPrefix;
+    }
+
+    /**
+     * Configuration of a reporter, replaced as a whole when the endpoint is reconfigured. A report reads it once and
+     * uses it throughout.
+     */
+    private static final class Settings {
+        private final DataDogEndpoint endpoint;
+        private final FilteredMetricRegistry metrics;
+        private final SeriesTransport transport;
+        private final ExpansionSelector expansions;
+        private final AggregationSelector aggregations;
+        private final TagExtractor extractions;
+        private final UnchangedSeriesFilter unchanged;
+
+        Settings(DataDogEndpoint endpoint, FilteredMetricRegistry metrics, SeriesTransport transport,
+                 ExpansionSelector expansions, UnchangedSeriesFilter unchanged) {
+            this.endpoint = endpoint;
+            this.metrics = metrics;
+            this.transport = transport;
+            this.expansions = expansions;
+            this.aggregations = endpoint.getAggregationSelector();
+            this.extractions = endpoint.getTagExtractor();
+            this.unchanged = unchanged;
+        }
+    }
+
+    /**
+     * Expansions of a histogram, meter or timer, with their names and the count sent last.
+     */
+    private static final class Expanded {
+        private final String name;
+        private final String[] names = new String[EXPANSIONS.length];
+        private ExpansionSelector selector;
+        private EnumSet<Expansion> expansions;
+        private Extraction extraction;
+        private String[] sentNames;
+        private long lastCount = -1;
+
+        Expanded(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Selects the expansions again when the selector changed, keeping the count sent last.
+         */
+        void select(ExpansionSelector selector) {
+            if (this.selector != selector) {
+                this.selector = selector;
+                this.expansions = selector.select(name);
+            }
+        }
+
+        /**
+         * Renames the expansions with the extraction matching the metric, or back to their own names.
+         */
+        void extract(Extraction extraction) {
+            if (this.extraction != extraction) {
+                this.extraction = extraction;
+                this.sentNames = extraction != null ? new String[EXPANSIONS.length] : null;
+            }
+        }
+
+        /**
+         * @return the name the expansion is sent with
+         */
+        String sentName(Expansion expansion) {
+            if (extraction == null) return name(expansion);
+            String sentName = sentNames[expansion.ordinal()];
+            if (sentName == null) {
+                sentName = extraction.name + '.' + expansion;
+                sentNames[expansion.ordinal()] = sentName;
+            }
+            return sentName;
+        }
+
+        /**
+         * @return the tags of the extraction, or {@code null}
+         */
+        String tags() {
+            return extraction != null ? extraction.tags : null;
+        }
+
+        /**
+         * @return the name of the expansion before extraction
+         */
+        String name(Expansion expansion) {
+            String expandedName = names[expansion.ordinal()];
+            if (expandedName == null) {
+                expandedName = name + '.' + expansion;
+                names[expansion.ordinal()] = expandedName;
+            }
+            return expandedName;
+        }
+
+        /**
+         * @return increase of the count since the previous report, the whole count on the first report
+         */
+        long delta(long count) {
+            long delta = lastCount < 0 ? count : count - lastCount;
+            lastCount = count;
+            return delta;
+        }
+    }
+}
@@ -4,114 +4,501 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.MetricFilter;
 import com.google.common.annotations.VisibleForTesting;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Util;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.Secret;
 import jenkins.metrics.api.Metrics;
+import jenkins.model.Jenkins;
 import jenkins.metrics.impl.datadog.MetricsDatadogConfig.DataDogEndpoint;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.DatadogHttpEndpoint;
 import jenkins.metrics.impl.datadog.MetricsDatadogConfig.DatadogUdpEndpoint;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.DatadogUdsEndpoint;
 import jenkins.metrics.impl.datadog.MetricsDatadogConfig.PrefixFilter;
-import org.coursera.metrics.datadog.DatadogReporter;
-import org.coursera.metrics.datadog.DatadogReporter.Expansion;
-import org.coursera.metrics.datadog.transport.Transport;
-import org.coursera.metrics.datadog.transport.UdpTransport;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.RateClass;
 
-import java.util.EnumSet;
-import java.util.HashSet;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Reporters of the configured endpoints.
+ * <p>
+ * All endpoints are reported by a single scheduler thread. Endpoints are grouped by {@link ReportSchedule} into
+ * {@link ReportingLane}s: on each report of a lane, the registry is read once into a {@link MetricsSnapshot} which
+ * is then sent to every endpoint of the lane with its own filter, expansions and tags. Gauges which are too slow to
+ * evaluate on the scheduler thread are refreshed in the background by a shared {@link GaugeEvaluator}.
+ * <p>
+ * Reporters are keyed by the target of their endpoint, so that an endpoint whose other settings change keeps its
+ * reporter, its lane thread and, when possible, its socket.
+ * <p>
+ * Metrics about each endpoint, such as sent and dropped datagrams, are registered under {@link #METRICS_PREFIX}.
+ * <p>
+ * The metrics of each {@link RateClass} of an endpoint are reported at the interval of the class by a reporter of
+ * their own, sharing the lanes and the transport of the other reporters, and are left out of the reporter of the
+ * endpoint and of its series budget.
+ */
 class DatadogReportersRegistry {
 
     private static final Logger LOGGER = Logger.getLogger(DatadogReportersRegistry.class.getName());
 
+    static final String METRICS_PREFIX = "jenkins.datadog";
+
+    static final String SPILL_DIRECTORY = "metrics-datadog/spill";
+
+    @NonNull
+    private transient Map<String, DatadogEndpointReporter> reporters;
+
     @NonNull
-    private transient Map<DataDogEndpoint, DatadogReporter> reporters;
+    private transient Map<String, List<DatadogEndpointReporter>> rateReporters;
+
+    @NonNull
+    private transient Map<ReportSchedule, ReportingLane> lanes;
+
+    private transient ScheduledExecutorService scheduler;
+
+    private transient GaugeEvaluator evaluator;
+
+    private transient ParallelCollector collector;
+
+    private transient HostResolver resolver;
 
     DatadogReportersRegistry() {
         this.reporters = new LinkedHashMap<>();
+        this.rateReporters = new HashMap<>();
+        this.lanes = new HashMap<>();
     }
 
-    void stopReporters() {
+    synchronized void stopReporters() {
         LOGGER.info("Stopping DataDog reporters.");
-        reporters.values().forEach(DatadogReporter::stop);
+        lanes.values().forEach(ReportingLane::stop);
+        lanes.clear();
+        stopScheduler();
+        rateReporters.values().forEach(rates -> rates.forEach(DatadogEndpointReporter::stop));
+        rateReporters.clear();
+        reporters.values().forEach(DatadogEndpointReporter::stop);
         reporters.clear();
+        stopResolver();
     }
 
+    /**
+     * Applies a new configuration: reporters of removed endpoints are stopped, new endpoints get a reporter, and
+     * reporters of changed endpoints are reconfigured in place, keeping their filtered registry and their transport
+     * when the endpoint changes do not affect them.
+     */
     synchronized void updateReporters(@NonNull List<DataDogEndpoint> endpoints) {
 
-        MetricRegistry registry = Metrics.metricRegistry();
+        Map<String, DataDogEndpoint> configured = new LinkedHashMap<>();
+        for (DataDogEndpoint endpoint: endpoints) {
+            if (!endpoint.isValid()) {
+                LOGGER.log(Level.WARNING, "Ignoring invalid DataDog endpoint {0}", new Object[]{endpoint});
+                continue;
+            }
+            String key = endpoint.getTarget();
+            for (int i = 2; configured.containsKey(key); i++) {
+                key = endpoint.getTarget() + "#" + i;
+            }
+            configured.put(key, endpoint);
+        }
+
+        Iterator<Map.Entry<String, DatadogEndpointReporter>> it = reporters.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, DatadogEndpointReporter> entry = it.next();
+            if (!configured.containsKey(entry.getKey())) {
+                it.remove();
+                stopRateReporters(entry.getKey());
+                entry.getValue().stop();
+                LOGGER.log(Level.INFO, "Stopping DataDog reporter for endpoint {0}",
+                        new Object[]{entry.getValue().getEndpoint()});
+                if (entry.getValue().getEndpoint() instanceof DatadogHttpEndpoint) {
+                    deleteSpillFile(entry.getKey());
+                }
+            }
+        }
 
-        Set<DataDogEndpoint> toStop = new HashSet<DataDogEndpoint>(reporters.keySet());
+        for (Map.Entry<String, DataDogEndpoint> entry: configured.entrySet()) {
+            DataDogEndpoint endpoint = entry.getValue();
+            DatadogEndpointReporter reporter = reporters.get(entry.getKey());
 
-        for (DataDogEndpoint endpoint: endpoints) {
+            if (reporter != null) {
+                DataDogEndpoint previous = reporter.getEndpoint();
+                if (previous.equals(endpoint)) continue;
 
-            toStop.remove(endpoint);
-            if (reporters.containsKey(endpoint)) continue;
+                // the registries of the rate classes share the guard of the endpoint, so they follow its registry
+                boolean sameRegistries = previous.getPrefixFilters().equals(endpoint.getPrefixFilters())
+                        && previous.getRateClasses().equals(endpoint.getRateClasses())
+                        && hasSameBudget(previous, endpoint);
+                FilteredMetricRegistry filteredRegistry = sameRegistries
+                        ? reporter.getMetrics() : createFilteredRegistry(endpoint);
+                boolean sameTransport = previous.hasSameTransport(endpoint);
+                SeriesTransport transporter = sameTransport
+                        ? reporter.getTransport() : createTransporter(entry.getKey(), endpoint);
 
-            if (!endpoint.isValid()) {
-                LOGGER.log(Level.WARNING, "Ignoring invalid DataDog endpoint {0}", new Object[]{endpoint});
+                LOGGER.log(Level.INFO, "Reconfiguring DataDog reporter for endpoint {0}", new Object[]{endpoint});
+                if (sameRegistries && sameTransport) {
+                    // the rate reporters are reconfigured before the transport of the endpoint may be closed
+                    for (DatadogEndpointReporter rateReporter : rateReporters.getOrDefault(entry.getKey(), Collections.emptyList())) {
+                        rateReporter.reconfigure(endpoint, rateReporter.getMetrics(), rateReporter.getTransport(),
+                                endpoint.getExpansionSelector());
+                    }
+                    reporter.reconfigure(endpoint, filteredRegistry, transporter, endpoint.getExpansionSelector());
+                } else {
+                    stopRateReporters(entry.getKey());
+                    reporter.reconfigure(endpoint, filteredRegistry, transporter, endpoint.getExpansionSelector());
+                    startRateReporters(entry.getKey(), endpoint, transporter, filteredRegistry.getGuard());
+                }
                 continue;
             }
 
-            Transport transporter = createTransporter(endpoint);
+            SeriesTransport transporter = createTransporter(entry.getKey(), endpoint);
             if (transporter == null) {
                 LOGGER.warning("Unknown DataDog transporter. Skipping DataDog endpoint configuration.");
                 continue;
             }
 
-            // TODO - needs to be configurable through Endpoint configuration:
-            EnumSet<Expansion> expansions = EnumSet.of(Expansion.COUNT);
+            reporter = new DatadogEndpointReporter(endpoint, createFilteredRegistry(endpoint), transporter,
+                    endpoint.getExpansionSelector(), metricsPrefix(entry.getKey()));
+            reporters.put(entry.getKey(), reporter);
 
-            List<PrefixFilter> prefixFilters = endpoint.getPrefixFilters();
-            MetricFilter filter = MetricFilter.ALL;
+            LOGGER.log(Level.INFO, "Starting DataDog reporter for endpoint {0}", new Object[]{endpoint});
+            reporter.start();
+            startRateReporters(entry.getKey(), endpoint, transporter, reporter.getMetrics().getGuard());
+        }
 
-            if ( prefixFilters.size() > 0 ) {
-                LOGGER.log(Level.INFO, "Using SimpleMetricFilter");
-                filter = new SimpleMetricFilter(prefixFilters);
+        updateLanes();
+    }
+
+    /**
+     * @return whether the series budget admits the same metrics for both endpoints, which depends on the series
+     * the metrics are sent as
+     */
+    private static boolean hasSameBudget(DataDogEndpoint previous, DataDogEndpoint endpoint) {
+        if (previous.getSeriesBudget() != endpoint.getSeriesBudget()) return false;
+        return endpoint.getSeriesBudget() == 0 || previous.getExpansions().equals(endpoint.getExpansions())
+                && previous.getExpansionOverrides().equals(endpoint.getExpansionOverrides())
+                && previous.getAggregationRules().equals(endpoint.getAggregationRules());
+    }
+
+    /**
+     * Starts a reporter for each valid rate class of the endpoint, writing to the transport of the endpoint.
+     *
+     * @param key target of the endpoint, unique among the reporters
+     * @param guard the guard of the endpoint, also charged with the metrics of the classes, or {@code null}
+     */
+    private void startRateReporters(String key, DataDogEndpoint endpoint, SeriesTransport transport,
+                                    CardinalityGuard guard) {
+        List<RateClass> rateClasses = getValidRateClasses(endpoint);
+        if (rateClasses.isEmpty()) return;
+        List<DatadogEndpointReporter> started = new ArrayList<>();
+        for (int i = 0; i < rateClasses.size(); i++) {
+            RateClass rateClass = rateClasses.get(i);
+            DatadogEndpointReporter reporter = new DatadogEndpointReporter(endpoint,
+                    createRateRegistry(endpoint, rateClasses, i, guard), new SharedTransport(transport),
+                    endpoint.getExpansionSelector(), MetricRegistry.name(metricsPrefix(key), "class" + i),
+                    rateClass.getInterval());
+            LOGGER.log(Level.INFO, "Starting DataDog reporter for {0} of endpoint {1}", new Object[]{rateClass, endpoint});
+            reporter.start();
+            started.add(reporter);
+        }
+        rateReporters.put(key, started);
+    }
+
+    private void stopRateReporters(String key) {
+        List<DatadogEndpointReporter> stopped = rateReporters.remove(key);
+        if (stopped != null) {
+            stopped.forEach(DatadogEndpointReporter::stop);
+        }
+    }
+
+    private static List<RateClass> getValidRateClasses(DataDogEndpoint endpoint) {
+        List<RateClass> rateClasses = new ArrayList<>();
+        for (RateClass rateClass : endpoint.getRateClasses()) {
+            if (rateClass.isValid()) {
+                rateClasses.add(rateClass);
             } else {
-                LOGGER.log(Level.INFO, "Using MetricFilter.ALL");
+                LOGGER.log(Level.WARNING, "Ignoring invalid DataDog {0}", new Object[]{rateClass});
             }
+        }
+        return rateClasses;
+    }
 
-            DatadogReporter reporter = DatadogReporter.forRegistry(registry)
-                    .withTransport(transporter)
-                    .withExpansions(expansions)
-                    .withTags(endpoint.getMergedTags())
-                    .filter(filter)
-                    .build();
+    /**
+     * @return a registry holding the metrics of the endpoint, kept up to date as metrics are added or removed,
+     * instead of filtering the whole registry on each report, and capped by a {@link CardinalityGuard} when the
+     * endpoint has a series budget. Metrics of the rate classes of the endpoint are left out, their registries
+     * sharing the guard.
+     */
+    private static FilteredMetricRegistry createFilteredRegistry(DataDogEndpoint endpoint) {
+        MetricFilter filter = createPrefixFilter(endpoint);
+        List<RateClass> rateClasses = getValidRateClasses(endpoint);
+        if (!rateClasses.isEmpty()) {
+            filter = exclude(filter, rateClasses);
+        }
+        CardinalityGuard guard = endpoint.getSeriesBudget() > 0 ? new CardinalityGuard(endpoint.getSeriesBudget(),
+                endpoint.getExpansionSelector(), endpoint.getAggregationSelector()) : null;
 
-            reporters.put(endpoint, reporter);
+        return new FilteredMetricRegistry(Metrics.metricRegistry(), filter, guard);
+    }
 
-            LOGGER.log(Level.INFO, "Starting DataDog reporter for endpoint {0}", new Object[]{endpoint});
-            reporter.start(60, TimeUnit.SECONDS);
+    /**
+     * @return a registry holding the metrics of the endpoint in the rate class at {@code index}, a metric matching
+     * several classes belonging to the first one, capped by the guard of the endpoint
+     */
+    private static FilteredMetricRegistry createRateRegistry(DataDogEndpoint endpoint, List<RateClass> rateClasses,
+                                                             int index, CardinalityGuard guard) {
+        MetricFilter endpointFilter = createPrefixFilter(endpoint);
+        MetricFilter classFilter = new SimpleMetricFilter(rateClasses.get(index).getPrefixFilters());
+        MetricFilter filter = (name, metric) -> endpointFilter.matches(name, metric) && classFilter.matches(name, metric);
+        if (index > 0) {
+            filter = exclude(filter, rateClasses.subList(0, index));
+        }
+        return new FilteredMetricRegistry(Metrics.metricRegistry(), filter, guard);
+    }
+
+    private static MetricFilter createPrefixFilter(DataDogEndpoint endpoint) {
+        List<PrefixFilter> prefixFilters = endpoint.getPrefixFilters();
+        if ( prefixFilters.size() > 0 ) {
+            LOGGER.log(Level.INFO, "Using SimpleMetricFilter");
+            return new SimpleMetricFilter(prefixFilters);
+        }
+        LOGGER.log(Level.INFO, "Using MetricFilter.ALL");
+        return MetricFilter.ALL;
+    }
+
+    /**
+     * @return a filter matching the metrics of {@code filter} which are not in any of the rate classes
+     */
+    private static MetricFilter exclude(MetricFilter filter, List<RateClass> rateClasses) {
+        List<PrefixFilter> prefixFilters = new ArrayList<>();
+        rateClasses.forEach(rateClass -> prefixFilters.addAll(rateClass.getPrefixFilters()));
+        MetricFilter excluded = new SimpleMetricFilter(prefixFilters);
+        return (name, metric) -> filter.matches(name, metric) && !excluded.matches(name, metric);
+    }
+
+    /**
+     * @param key target of the endpoint, unique among the reporters
+     * @return prefix of the metrics about the endpoint
+     */
+    private static String metricsPrefix(String key) {
+        return MetricRegistry.name(METRICS_PREFIX, key.replaceAll("[^A-Za-z0-9_-]+", "_"));
+    }
+
+    /**
+     * @param key target of the endpoint, unique among the reporters
+     * @return the file where the endpoint keeps the batches it cannot send, under {@code JENKINS_HOME}
+     */
+    static File spillFile(String key) {
+        String name = key.replaceAll("[^A-Za-z0-9_-]+", "_") + ".spill";
+        return new File(new File(Jenkins.get().getRootDir(), SPILL_DIRECTORY), name);
+    }
+
+    /**
+     * Deletes the spill file of a removed endpoint, which would otherwise be left behind with its unsent batches.
+     *
+     * @param key target of the endpoint, unique among the reporters
+     */
+    private static void deleteSpillFile(String key) {
+        try {
+            Files.deleteIfExists(spillFile(key).toPath());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot delete the spill file of DataDog endpoint " + key, e);
         }
+    }
 
-        for (DataDogEndpoint endpoint: toStop) {
-            DatadogReporter reporter = reporters.get(endpoint);
-            reporters.remove(endpoint);
-            reporter.stop();
-            LOGGER.log(Level.INFO, "Stopping DataDog reporter for endpoint {0}", new Object[]{endpoint});
+    private void updateLanes() {
+        Map<ReportSchedule, List<DatadogEndpointReporter>> reportersBySchedule = new LinkedHashMap<>();
+        for (DatadogEndpointReporter reporter : reporters.values()) {
+            reportersBySchedule.computeIfAbsent(reporter.getSchedule(), s -> new ArrayList<>()).add(reporter);
         }
+        for (List<DatadogEndpointReporter> rates : rateReporters.values()) {
+            for (DatadogEndpointReporter reporter : rates) {
+                reportersBySchedule.computeIfAbsent(reporter.getSchedule(), s -> new ArrayList<>()).add(reporter);
+            }
+        }
+
+        Iterator<ReportingLane> it = lanes.values().iterator();
+        while (it.hasNext()) {
+            ReportingLane lane = it.next();
+            if (!reportersBySchedule.containsKey(lane.getSchedule())) {
+                lane.stop();
+                it.remove();
+            }
+        }
+        if (reportersBySchedule.isEmpty()) {
+            stopScheduler();
+            return;
+        }
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(
+                    new NamingThreadFactory(new DaemonThreadFactory(), "DataDog reporter"));
+            evaluator = new GaugeEvaluator();
+            collector = ParallelCollector.fromSystemProperties();
+            Metrics.metricRegistry().register(MetricRegistry.name(METRICS_PREFIX, "gauges"), evaluator);
+        }
+        for (Map.Entry<ReportSchedule, List<DatadogEndpointReporter>> entry : reportersBySchedule.entrySet()) {
+            ReportingLane lane = lanes.get(entry.getKey());
+            if (lane == null) {
+                lane = new ReportingLane(entry.getKey(), scheduler, evaluator, collector);
+                lane.setReporters(entry.getValue());
+                lanes.put(entry.getKey(), lane);
+                lane.start(initialDelay(entry.getKey()), TimeUnit.MILLISECONDS);
+            } else {
+                // keep the timing of running lanes
+                lane.setReporters(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return milliseconds before the first report: one interval, plus the phase offset and a random jitter when
+     * configured, so that Jenkins instances sharing a DogStatsD agent do not all report at the same time
+     */
+    private static long initialDelay(ReportSchedule schedule) {
+        long interval = TimeUnit.SECONDS.toMillis(schedule.getInterval());
+        long delay = interval;
+        if (schedule.isSpreadPhase()) {
+            Jenkins jenkins = Jenkins.getInstanceOrNull();
+            String instanceId = jenkins == null ? null : jenkins.getLegacyInstanceId();
+            if (instanceId != null) {
+                // stable across restarts, and evenly distributed over the interval among instances
+                delay += Math.floorMod((long) instanceId.hashCode(), interval);
+            }
+        }
+        if (schedule.getStartupJitter() > 0) {
+            delay += ThreadLocalRandom.current().nextLong(TimeUnit.SECONDS.toMillis(schedule.getStartupJitter()) + 1);
+        }
+        return delay;
     }
 
-    private Transport createTransporter(DataDogEndpoint endpoint) {
+    private void stopScheduler() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+            evaluator.stop();
+            if (collector != null) {
+                collector.stop();
+                collector = null;
+            }
+            Metrics.metricRegistry().removeMatching((name, metric) -> name.startsWith(METRICS_PREFIX + ".gauges."));
+            evaluator = null;
+        }
+    }
+
+    /**
+     * @return the resolver shared by the UDP transports, whose metrics are registered under
+     * {@link #METRICS_PREFIX}{@code .dns}
+     */
+    private HostResolver resolver() {
+        if (resolver == null) {
+            resolver = new HostResolver();
+            Metrics.metricRegistry().register(MetricRegistry.name(METRICS_PREFIX, "dns"), resolver);
+        }
+        return resolver;
+    }
+
+    private void stopResolver() {
+        if (resolver != null) {
+            resolver.stop();
+            Metrics.metricRegistry().removeMatching((name, metric) -> name.startsWith(METRICS_PREFIX + ".dns."));
+            resolver = null;
+        }
+    }
+
+    /**
+     * @param key target of the endpoint, unique among the reporters
+     */
+    private SeriesTransport createTransporter(String key, DataDogEndpoint endpoint) {
 
         if (endpoint instanceof DatadogUdpEndpoint) {
             DatadogUdpEndpoint udpEndpoint = (DatadogUdpEndpoint) endpoint;
-            return new UdpTransport.Builder()
-                    .withStatsdHost(udpEndpoint.getStatsdHost())
-                    .withPort(udpEndpoint.getPort())
-                    .build();
+            HostResolver resolver = resolver();
+            // resolved off the calling thread, which may be Jenkins startup or a configuration save
+            resolver.prefetch(udpEndpoint.getStatsdHost());
+            return new BatchingUdpTransport(udpEndpoint.getStatsdHost(), udpEndpoint.getPort(), endpoint.getMergedTags(),
+                    udpEndpoint.getMaxPacketSize(), udpEndpoint.isBatchPackets(), endpoint.getSendQueueCapacity(),
+                    endpoint.getOverflowPolicy(), resolver);
+        }
+
+        if (endpoint instanceof DatadogUdsEndpoint) {
+            DatadogUdsEndpoint udsEndpoint = (DatadogUdsEndpoint) endpoint;
+            return new BatchingUdsTransport(udsEndpoint.getSocketPath(), endpoint.getMergedTags(),
+                    udsEndpoint.getMaxPacketSize(), udsEndpoint.getSendTimeout(), endpoint.getSendQueueCapacity(),
+                    endpoint.getOverflowPolicy());
+        }
+
+        if (endpoint instanceof DatadogHttpEndpoint) {
+            DatadogHttpEndpoint httpEndpoint = (DatadogHttpEndpoint) endpoint;
+            SpillQueue spill = httpEndpoint.getSpillSize() > 0
+                    ? new SpillQueue(spillFile(key), httpEndpoint.getSpillSize() * 1024 * 1024) : null;
+            return new HttpSeriesTransport(httpEndpoint.toURL(), Util.fixEmpty(Secret.toString(httpEndpoint.getApiKey())),
+                    endpoint.getMergedTags(), httpEndpoint.getMaxPayloadSize(), httpEndpoint.isCompress(),
+                    endpoint.getSendQueueCapacity(), endpoint.getOverflowPolicy(),
+                    HttpSeriesTransport.DEFAULT_RETRY_DELAY_MILLIS, spill, AsyncSender.REPLAY_INTERVAL_MILLIS);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return figures of the last report of each endpoint
+     */
+    synchronized List<EndpointStatus> getStatus() {
+        List<EndpointStatus> status = new ArrayList<>();
+        for (Map.Entry<String, DatadogEndpointReporter> entry : reporters.entrySet()) {
+            DatadogEndpointReporter reporter = entry.getValue();
+            String target = reporter.getEndpoint().getTarget();
+            status.add(new EndpointStatus(target, reporter.getStats(), getSender(reporter.getTransport()),
+                    reporter.getMetrics().getGuard()));
+            for (DatadogEndpointReporter rateReporter : rateReporters.getOrDefault(entry.getKey(), Collections.emptyList())) {
+                status.add(new EndpointStatus(target + " (" + rateReporter.getSchedule().getInterval() + "s)",
+                        rateReporter.getStats(), getSender(rateReporter.getTransport()), null));
+            }
         }
+        return status;
+    }
 
+    private static AsyncSender getSender(SeriesTransport transport) {
+        if (transport instanceof SharedTransport) {
+            transport = ((SharedTransport) transport).getTransport();
+        }
+        if (transport instanceof BatchingDatagramTransport) {
+            return ((BatchingDatagramTransport) transport).getSender();
+        }
+        if (transport instanceof HttpSeriesTransport) {
+            return ((HttpSeriesTransport) transport).getSender();
+        }
         return null;
     }
 
+    /**
+     * @return the gauges evaluated in the background because they are slow, slowest first
+     */
+    synchronized List<GaugeEvaluator.SlowGauge> getSlowGauges() {
+        return evaluator == null ? Collections.emptyList() : evaluator.getSlowGauges();
+    }
+
     @NonNull
     @VisibleForTesting
-    Map<DataDogEndpoint, DatadogReporter> getReporters() {
+    Map<String, DatadogEndpointReporter> getReporters() {
         return reporters;
     }
+
+    @NonNull
+    @VisibleForTesting
+    Map<String, List<DatadogEndpointReporter>> getRateReporters() {
+        return rateReporters;
+    }
 }
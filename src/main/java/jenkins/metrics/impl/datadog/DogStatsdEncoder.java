@@ -0,0 +1,246 @@
+package jenkins.metrics.impl.datadog;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Encodes DogStatsD lines, {@code name:value|type|#tags}, into a reusable buffer without allocating.
+ * <p>
+ * The tags of the endpoint are encoded once, metric names are encoded on first use then cached, and numbers are
+ * written digit by digit instead of going through boxed values and {@code String}s. Doubles are written with up to
+ * 15 significant digits, values below {@value #MIN_PLAIN_DOUBLE} in scientific notation.
+ */
+final class DogStatsdEncoder {
+
+    private static final Logger LOGGER = Logger.getLogger(DogStatsdEncoder.class.getName());
+
+    static final int MAX_CACHED_NAMES = 100_000;
+
+    private static final int MAX_DIGITS = 15;
+
+    // the zeros after the decimal point of smaller values and their digits would not fit in a long
+    private static final int MAX_LEADING_ZEROS = 3;
+
+    static final double MIN_PLAIN_DOUBLE = 1e-3;
+
+    private static final long[] POWERS_OF_TEN = new long[MAX_DIGITS + MAX_LEADING_ZEROS + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private static final byte[] LONG_MIN_VALUE = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] tags;
+    private final Map<String, byte[]> names = new HashMap<>();
+    private final ByteBuffer line;
+    private final byte[] digits = new byte[20];
+
+    /**
+     * @param tags tags added to every line, as {@code key:value}
+     * @param maxLineLength size in bytes of the longest line
+     */
+    DogStatsdEncoder(List<String> tags, int maxLineLength) {
+        this.tags = tags.isEmpty() ? new byte[0] : ("|#" + String.join(",", tags)).getBytes(StandardCharsets.UTF_8);
+        this.line = ByteBuffer.allocate(maxLineLength);
+    }
+
+    ByteBuffer gauge(String name, long value) {
+        return gauge(name, null, value);
+    }
+
+    /**
+     * @param metricTags tags of this series, as {@code key:value,key:value}, added before the tags of the endpoint
+     *                   and cached like names, or {@code null}
+     * @return the line, valid until the next call, or {@code null} when it is longer than the maximum line length
+     */
+    ByteBuffer gauge(String name, String metricTags, long value) {
+        line.clear();
+        try {
+            line.put(name(name)).put((byte) ':');
+            putLong(value);
+            return end('g', metricTags);
+        } catch (BufferOverflowException e) {
+            return tooLong(name);
+        }
+    }
+
+    ByteBuffer gauge(String name, double value) {
+        return gauge(name, null, value);
+    }
+
+    /**
+     * @param metricTags tags of this series, or {@code null}
+     * @return the line, valid until the next call, or {@code null} when the value is not a number or the line is
+     * longer than the maximum line length
+     */
+    ByteBuffer gauge(String name, String metricTags, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) return null;
+        line.clear();
+        try {
+            line.put(name(name)).put((byte) ':');
+            putDouble(value);
+            return end('g', metricTags);
+        } catch (BufferOverflowException e) {
+            return tooLong(name);
+        }
+    }
+
+    ByteBuffer count(String name, long delta) {
+        return count(name, null, delta);
+    }
+
+    /**
+     * @param metricTags tags of this series, or {@code null}
+     * @return the line, valid until the next call, or {@code null} when it is longer than the maximum line length
+     */
+    ByteBuffer count(String name, String metricTags, long delta) {
+        line.clear();
+        try {
+            line.put(name(name)).put((byte) ':');
+            putLong(delta);
+            return end('c', metricTags);
+        } catch (BufferOverflowException e) {
+            return tooLong(name);
+        }
+    }
+
+    /**
+     * Encodes a value of a distribution or histogram, with a tag of its own before the tags of the endpoint.
+     *
+     * @param tag tag as {@code key:value}, cached like names
+     * @return the line, valid until the next call, or {@code null} when the value is not a number or the line is
+     * longer than the maximum line length
+     */
+    ByteBuffer sample(String name, double value, AggregationType type, String tag) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) return null;
+        line.clear();
+        try {
+            line.put(name(name)).put((byte) ':');
+            putDouble(value);
+            return end(type.getSymbol(), tag);
+        } catch (BufferOverflowException e) {
+            return tooLong(name);
+        }
+    }
+
+    private ByteBuffer end(char type, String metricTags) {
+        line.put((byte) '|').put((byte) type);
+        if (metricTags == null) {
+            line.put(tags);
+        } else {
+            line.put((byte) '|').put((byte) '#').put(name(metricTags));
+            if (tags.length > 0) {
+                // the tags of the endpoint without their "|#"
+                line.put((byte) ',').put(tags, 2, tags.length - 2);
+            }
+        }
+        line.flip();
+        return line;
+    }
+
+    private ByteBuffer tooLong(String name) {
+        LOGGER.log(Level.FINE, "Dropping DogStatsD line of {0} larger than the maximum packet size", name);
+        return null;
+    }
+
+    private byte[] name(String name) {
+        byte[] bytes = names.get(name);
+        if (bytes == null) {
+            if (names.size() >= MAX_CACHED_NAMES) {
+                names.clear();
+            }
+            bytes = name.getBytes(StandardCharsets.UTF_8);
+            names.put(name, bytes);
+        }
+        return bytes;
+    }
+
+    private void putLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            line.put(LONG_MIN_VALUE);
+            return;
+        }
+        if (value < 0) {
+            line.put((byte) '-');
+            value = -value;
+        }
+        putDigits(value, 0);
+    }
+
+    /**
+     * Writes the digits of a positive value, left padded with zeros up to the given width.
+     */
+    private void putDigits(long value, int width) {
+        int start = digits.length;
+        do {
+            digits[--start] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (digits.length - start < width) {
+            digits[--start] = '0';
+        }
+        line.put(digits, start, digits.length - start);
+    }
+
+    private void putDouble(double value) {
+        double abs = Math.abs(value);
+        if (value == (long) value && value != Long.MAX_VALUE && value != Long.MIN_VALUE) {
+            putLong((long) value);
+            return;
+        }
+        if (abs >= POWERS_OF_TEN[MAX_DIGITS] || abs < MIN_PLAIN_DOUBLE) {
+            // integral anyway or tiny, and rare enough to go through a String
+            line.put(Double.toString(value).getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        long integer = (long) abs;
+        int decimals = integer == 0 ? MAX_DIGITS + leadingZeros(abs) : MAX_DIGITS - digitCount(integer);
+        long scale = POWERS_OF_TEN[decimals];
+        long fraction = Math.round((abs - integer) * scale);
+        if (fraction >= scale) {
+            integer++;
+            fraction -= scale;
+        }
+        if (value < 0 && (integer != 0 || fraction != 0)) {
+            line.put((byte) '-');
+        }
+        putDigits(integer, 0);
+        if (fraction != 0) {
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                decimals--;
+            }
+            line.put((byte) '.');
+            putDigits(fraction, decimals);
+        }
+    }
+
+    /**
+     * @return number of zeros between the decimal point and the first significant digit of a value below 1
+     */
+    private static int leadingZeros(double value) {
+        int zeros = 0;
+        while (zeros < MAX_LEADING_ZEROS && value * POWERS_OF_TEN[zeros + 1] < 1) {
+            zeros++;
+        }
+        return zeros;
+    }
+
+    private static int digitCount(long value) {
+        int count = 1;
+        while (count < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[count]) {
+            count++;
+        }
+        return count;
+    }
+}
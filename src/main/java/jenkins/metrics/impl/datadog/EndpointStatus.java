@@ -0,0 +1,128 @@
+package jenkins.metrics.impl.datadog;
+
+import hudson.Util;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Figures of the last report of an endpoint, shown in the status section of the configuration page.
+ */
+@Restricted(NoExternalUse.class)
+public final class EndpointStatus {
+
+    private final String target;
+    private final ReportStats stats;
+    private final AsyncSender sender;
+    private final CardinalityGuard guard;
+
+    EndpointStatus(String target, ReportStats stats, AsyncSender sender, CardinalityGuard guard) {
+        this.target = target;
+        this.stats = stats;
+        this.sender = sender;
+        this.guard = guard;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * @return how long ago the last report ran, or {@code null} before the first one
+     */
+    public String getLastReport() {
+        long timestamp = stats.getTimestamp();
+        if (timestamp == 0) return null;
+        return Util.getTimeSpanString(Math.max(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(timestamp), 0));
+    }
+
+    public String getDuration() {
+        return millis(stats.getDurationNanos());
+    }
+
+    public String getEvaluation() {
+        return millis(stats.getEvaluationNanos());
+    }
+
+    public String getSerialization() {
+        return millis(stats.getSerializationNanos());
+    }
+
+    /**
+     * @return mean time spent writing a datagram, or {@code null} when the transport is not measured
+     */
+    public String getWrite() {
+        return sender == null ? null : millis((long) sender.getWrites().getSnapshot().getMean());
+    }
+
+    public int getMetrics() {
+        return stats.getMetricCount();
+    }
+
+    public int getFiltered() {
+        return stats.getFilteredCount();
+    }
+
+    public int getSeries() {
+        return stats.getSeriesCount();
+    }
+
+    public int getSkipped() {
+        return stats.getSkippedCount();
+    }
+
+    public String getSlowestMetric() {
+        return stats.getSlowestMetric();
+    }
+
+    public String getSlowest() {
+        return millis(stats.getSlowestNanos());
+    }
+
+    public long getSent() {
+        return sender == null ? 0 : sender.getSent();
+    }
+
+    public long getSentBytes() {
+        return sender == null ? 0 : sender.getSentBytes();
+    }
+
+    public long getDropped() {
+        return sender == null ? 0 : sender.getDropped();
+    }
+
+    public long getErrors() {
+        return sender == null ? 0 : sender.getErrors();
+    }
+
+    public int getQueueSize() {
+        return sender == null ? 0 : sender.getQueueSize();
+    }
+
+    /**
+     * @return admitted series out of the series budget, or {@code null} when the endpoint has no budget
+     */
+    public String getBudget() {
+        return guard == null ? null : guard.getAdmitted() + " / " + guard.getBudget();
+    }
+
+    /**
+     * @return number of metrics left out by the series budget
+     */
+    public long getRejected() {
+        return guard == null ? 0 : guard.getRejected();
+    }
+
+    /**
+     * @return the last metric left out by the series budget, or {@code null}
+     */
+    public String getLastRejected() {
+        return guard == null ? null : guard.getLastRejected();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.2f ms", nanos / 1e6);
+    }
+}
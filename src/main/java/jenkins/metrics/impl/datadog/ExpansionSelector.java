@@ -0,0 +1,87 @@
+package jenkins.metrics.impl.datadog;
+
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.ExpansionOverride;
+import org.coursera.metrics.datadog.DatadogReporter.Expansion;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Selects the {@link Expansion}s sent for a histogram, meter or timer: those of the longest matching prefix
+ * override, or else those of the endpoint.
+ * <p>
+ * Expansions are written as a comma separated list of their DataDog suffixes, such as {@code count, p95, p99}.
+ */
+final class ExpansionSelector {
+
+    static final String DEFAULT_EXPANSIONS = "count";
+
+    private final EnumSet<Expansion> defaults;
+    private final List<String> prefixes = new ArrayList<>();
+    private final List<EnumSet<Expansion>> overrides = new ArrayList<>();
+
+    ExpansionSelector(EnumSet<Expansion> defaults, List<ExpansionOverride> expansionOverrides) {
+        this.defaults = defaults;
+        for (ExpansionOverride override : expansionOverrides) {
+            if (override.getPrefix() == null) continue;
+            prefixes.add(override.getPrefix());
+            overrides.add(parse(override.getExpansions(), null));
+        }
+    }
+
+    /**
+     * @return the expansions of the metric, shared between metrics so not to be modified
+     */
+    EnumSet<Expansion> select(String name) {
+        EnumSet<Expansion> selected = defaults;
+        int longest = -1;
+        for (int i = 0; i < prefixes.size(); i++) {
+            String prefix = prefixes.get(i);
+            if (prefix.length() > longest && name.startsWith(prefix)) {
+                selected = overrides.get(i);
+                longest = prefix.length();
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @param unknown receives the names which are not expansions, or {@code null}
+     */
+    static EnumSet<Expansion> parse(String value, Collection<String> unknown) {
+        EnumSet<Expansion> expansions = EnumSet.noneOf(Expansion.class);
+        if (value == null) return expansions;
+        for (String token : value.split("[,\\s]+")) {
+            if (token.isEmpty()) continue;
+            Expansion expansion = find(token);
+            if (expansion != null) {
+                expansions.add(expansion);
+            } else if (unknown != null) {
+                unknown.add(token);
+            }
+        }
+        return expansions;
+    }
+
+    private static Expansion find(String token) {
+        for (Expansion expansion : Expansion.values()) {
+            if (expansion.toString().equalsIgnoreCase(token) || expansion.name().equalsIgnoreCase(token)) {
+                return expansion;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the DataDog suffixes of all expansions, for help and validation messages
+     */
+    static String names() {
+        List<String> names = new ArrayList<>();
+        for (Expansion expansion : Expansion.values()) {
+            names.add(expansion.toString());
+        }
+        return String.join(", ", names);
+    }
+}
@@ -0,0 +1,163 @@
+package jenkins.metrics.impl.datadog;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry holding the metrics of a source registry which are matching a filter.
+ * <p>
+ * The content is maintained through a {@link MetricRegistryListener}, so the filter only runs when a metric is
+ * added to the source registry instead of on every report, and reporting from this registry costs in proportion
+ * to the number of matching metrics. Matching metrics are also subject to the {@link CardinalityGuard} of the
+ * endpoint when it has a series budget, which is told about removed metrics so that they free their place in it.
+ */
+class FilteredMetricRegistry extends MetricRegistry {
+
+    private static final Logger LOGGER = Logger.getLogger(FilteredMetricRegistry.class.getName());
+
+    private final MetricRegistry source;
+    private final MetricFilter filter;
+    private final CardinalityGuard guard;
+    private final MetricRegistryListener listener = new Listener();
+    private final AtomicInteger sourceSize = new AtomicInteger();
+
+    FilteredMetricRegistry(MetricRegistry source, MetricFilter filter) {
+        this(source, filter, null);
+    }
+
+    /**
+     * @param guard the guard capping the number of series of the endpoint, possibly shared with other registries
+     */
+    FilteredMetricRegistry(MetricRegistry source, MetricFilter filter, CardinalityGuard guard) {
+        this.source = source;
+        this.filter = filter;
+        this.guard = guard;
+    }
+
+    /**
+     * Starts mirroring the source registry, existing metrics are indexed immediately.
+     */
+    void attach() {
+        source.addListener(listener);
+    }
+
+    void detach() {
+        source.removeListener(listener);
+        sourceSize.set(0);
+    }
+
+    /**
+     * @return number of metrics of the source registry which do not match the filter
+     */
+    int getFilteredOut() {
+        return Math.max(sourceSize.get() - getMetrics().size(), 0);
+    }
+
+    MetricRegistry getSource() {
+        return source;
+    }
+
+    /**
+     * @return the guard capping the number of series, or {@code null} when the endpoint has no series budget
+     */
+    CardinalityGuard getGuard() {
+        return guard;
+    }
+
+    private void add(String name, Metric metric) {
+        sourceSize.incrementAndGet();
+        if (!filter.matches(name, metric)) return;
+        if (guard != null) {
+            guard.admit(name, metric, this);
+        } else {
+            admitted(name, metric);
+        }
+    }
+
+    /**
+     * Adds a matching metric, called by the guard when it admits the metric.
+     */
+    void admitted(String name, Metric metric) {
+        try {
+            register(name, metric);
+        } catch (IllegalArgumentException e) {
+            // should not happen as names are unique in the source registry, keep the latest metric
+            LOGGER.log(Level.FINE, "Replacing metric {0}", name);
+            remove(name);
+            register(name, metric);
+        }
+    }
+
+    private void removed(String name) {
+        sourceSize.decrementAndGet();
+        if (guard != null) {
+            guard.removed(name);
+        } else {
+            remove(name);
+        }
+    }
+
+    private class Listener implements MetricRegistryListener {
+
+        @Override
+        public void onGaugeAdded(String name, Gauge<?> gauge) {
+            add(name, gauge);
+        }
+
+        @Override
+        public void onGaugeRemoved(String name) {
+            removed(name);
+        }
+
+        @Override
+        public void onCounterAdded(String name, Counter counter) {
+            add(name, counter);
+        }
+
+        @Override
+        public void onCounterRemoved(String name) {
+            removed(name);
+        }
+
+        @Override
+        public void onHistogramAdded(String name, Histogram histogram) {
+            add(name, histogram);
+        }
+
+        @Override
+        public void onHistogramRemoved(String name) {
+            removed(name);
+        }
+
+        @Override
+        public void onMeterAdded(String name, Meter meter) {
+            add(name, meter);
+        }
+
+        @Override
+        public void onMeterRemoved(String name) {
+            removed(name);
+        }
+
+        @Override
+        public void onTimerAdded(String name, Timer timer) {
+            add(name, timer);
+        }
+
+        @Override
+        public void onTimerRemoved(String name) {
+            removed(name);
+        }
+    }
+}
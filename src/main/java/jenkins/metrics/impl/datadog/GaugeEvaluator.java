@@ -0,0 +1,280 @@
+package jenkins.metrics.impl.datadog;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Evaluates gauges for the reports, isolating the slow ones.
+ * <p>
+ * Each gauge is timed. A gauge which takes longer than the budget is moved to a small refresh pool: reports then
+ * send its last known value without waiting, while the pool computes the next one. A refresh is only started once
+ * the previous one completed, so a stuck gauge holds at most one pool thread. An isolated gauge whose refreshes get
+ * well under the budget is evaluated inline again.
+ * <p>
+ * A gauge is only evaluated inline once it was seen to complete within the budget: its first evaluation runs on
+ * another thread, waited for up to the budget, so that a gauge which hangs from the start is isolated without
+ * blocking the reporting thread. First evaluations get as many threads as the refresh pool: when hanging gauges hold
+ * all of them and their queue, new gauges are isolated right away. A gauge which was fast then hangs still blocks the
+ * reporting thread, as an evaluation cannot be interrupted. A gauge which throws is reported without a value.
+ * <p>
+ * The budget and the pool size are set with the {@code budgetMillis} and {@code threads} system properties
+ * prefixed with the class name. Isolated gauges are logged, counted in the metrics of this {@link MetricSet} and
+ * listed by {@link #getSlowGauges()}.
+ */
+class GaugeEvaluator implements MetricSet {
+
+    private static final Logger LOGGER = Logger.getLogger(GaugeEvaluator.class.getName());
+
+    static final long DEFAULT_BUDGET_MILLIS = 100;
+    static final int DEFAULT_THREADS = 2;
+
+    /** First evaluations waiting for a thread, past which new gauges are isolated right away. */
+    private static final int FIRST_EVALUATION_QUEUE = 16;
+
+    /** Isolated gauges which were not reported during this time are forgotten. */
+    private static final long UNUSED_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private final long budgetNanos;
+    private final ThreadPoolExecutor pool;
+    // a hanging gauge keeps its thread until it returns
+    private final ThreadPoolExecutor firstEvaluations;
+    private final Map<String, FastGauge> fast = new ConcurrentHashMap<>();
+    private final Map<String, SlowGauge> isolated = new ConcurrentHashMap<>();
+    private final Timer refreshes = new Timer();
+
+    // read and written by the collecting threads as well
+    private final AtomicLong lastPruneNanos = new AtomicLong(System.nanoTime());
+
+    GaugeEvaluator() {
+        this(SystemProperties.getLong(GaugeEvaluator.class.getName() + ".budgetMillis", DEFAULT_BUDGET_MILLIS),
+                SystemProperties.getInteger(GaugeEvaluator.class.getName() + ".threads", DEFAULT_THREADS));
+    }
+
+    GaugeEvaluator(long budgetMillis, int threads) {
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        int size = Math.max(threads, 1);
+        this.pool = new ThreadPoolExecutor(size, size, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "DataDog slow gauge refresh"));
+        this.pool.allowCoreThreadTimeOut(true);
+        this.firstEvaluations = new ThreadPoolExecutor(size, size, 1, TimeUnit.MINUTES,
+                new ArrayBlockingQueue<>(FIRST_EVALUATION_QUEUE),
+                new NamingThreadFactory(new DaemonThreadFactory(), "DataDog gauge evaluation"));
+        this.firstEvaluations.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Called by the reporting thread, or by the collecting threads.
+     *
+     * @return the value of the gauge, or its last known value when it is isolated, {@code null} until its first
+     * evaluation completes
+     */
+    Object evaluate(String name, Gauge<?> gauge) {
+        SlowGauge slow = isolated.get(name);
+        if (slow != null && slow.gauge == gauge) {
+            slow.lastRequested = System.nanoTime();
+            slow.refresh();
+            return slow.value;
+        }
+        FastGauge known = fast.get(name);
+        if (known == null || known.gauge != gauge) {
+            return evaluateFirst(name, gauge);
+        }
+        long start = System.nanoTime();
+        known.lastRequested = start;
+        Object value;
+        try {
+            value = gauge.getValue();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "Error evaluating DataDog gauge " + name, e);
+            value = null;
+        }
+        long nanos = System.nanoTime() - start;
+        if (nanos > budgetNanos) {
+            LOGGER.log(Level.WARNING, "DataDog gauge {0} took {1}ms, over the budget of {2}ms: its value is now "
+                    + "refreshed in the background", new Object[]{name, TimeUnit.NANOSECONDS.toMillis(nanos),
+                    TimeUnit.NANOSECONDS.toMillis(budgetNanos)});
+            fast.remove(name, known);
+            isolated.put(name, new SlowGauge(name, gauge, value, nanos));
+        }
+        prune();
+        return value;
+    }
+
+    /**
+     * Evaluates a gauge on another thread, waiting for it up to the budget, then isolates it if it did not complete.
+     */
+    private Object evaluateFirst(String name, Gauge<?> gauge) {
+        long start = System.nanoTime();
+        CompletableFuture<Object> evaluation;
+        try {
+            evaluation = CompletableFuture.supplyAsync(gauge::getValue, firstEvaluations);
+        } catch (RejectedExecutionException e) {
+            // hanging gauges hold every thread, or the evaluator is stopped
+            LOGGER.log(Level.WARNING, "DataDog gauge {0} could not be evaluated, other gauges did not complete: its "
+                    + "value is now refreshed in the background", name);
+            isolated.put(name, new SlowGauge(name, gauge, null, 0));
+            return null;
+        }
+        try {
+            Object value = evaluation.get(budgetNanos, TimeUnit.NANOSECONDS);
+            fast.put(name, new FastGauge(gauge));
+            return value;
+        } catch (TimeoutException e) {
+            LOGGER.log(Level.WARNING, "DataDog gauge {0} did not complete within the budget of {1}ms: its value is "
+                    + "now refreshed in the background", new Object[]{name, TimeUnit.NANOSECONDS.toMillis(budgetNanos)});
+            SlowGauge slow = new SlowGauge(name, gauge, null, System.nanoTime() - start);
+            slow.refreshing.set(true);
+            isolated.put(name, slow);
+            evaluation.whenComplete((value, error) -> slow.completed(value, error, start));
+            return null;
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.FINE, "Error evaluating DataDog gauge " + name, e.getCause());
+            fast.put(name, new FastGauge(gauge));
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private void prune() {
+        long now = System.nanoTime();
+        long last = lastPruneNanos.get();
+        if (now - last < UNUSED_NANOS || !lastPruneNanos.compareAndSet(last, now)) return;
+        isolated.values().removeIf(slow -> now - slow.lastRequested > UNUSED_NANOS);
+        fast.values().removeIf(known -> now - known.lastRequested > UNUSED_NANOS);
+    }
+
+    /**
+     * @return the isolated gauges, slowest first
+     */
+    List<SlowGauge> getSlowGauges() {
+        List<SlowGauge> gauges = new ArrayList<>(isolated.values());
+        gauges.sort(Comparator.comparingLong(SlowGauge::getNanos).reversed());
+        return gauges;
+    }
+
+    void stop() {
+        pool.shutdownNow();
+        firstEvaluations.shutdownNow();
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("isolated", (Gauge<Integer>) isolated::size);
+        metrics.put("refresh", refreshes);
+        metrics.put("slowest", (Gauge<Long>) () -> {
+            List<SlowGauge> gauges = getSlowGauges();
+            return gauges.isEmpty() ? 0L : TimeUnit.NANOSECONDS.toMillis(gauges.get(0).getNanos());
+        });
+        return metrics;
+    }
+
+    /**
+     * Gauge seen to complete within the budget, evaluated inline.
+     */
+    private static final class FastGauge {
+        private final Gauge<?> gauge;
+        private volatile long lastRequested = System.nanoTime();
+
+        FastGauge(Gauge<?> gauge) {
+            this.gauge = gauge;
+        }
+    }
+
+    /**
+     * Gauge refreshed in the background, with its last known value.
+     */
+    final class SlowGauge {
+        private final String name;
+        private final Gauge<?> gauge;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile Object value;
+        private volatile long nanos;
+        private volatile long lastRequested = System.nanoTime();
+
+        SlowGauge(String name, Gauge<?> gauge, Object value, long nanos) {
+            this.name = name;
+            this.gauge = gauge;
+            this.value = value;
+            this.nanos = nanos;
+        }
+
+        private void refresh() {
+            if (!refreshing.compareAndSet(false, true)) return;
+            try {
+                pool.execute(this::run);
+            } catch (RejectedExecutionException e) {
+                refreshing.set(false);
+            }
+        }
+
+        private void run() {
+            long start = System.nanoTime();
+            Object refreshed = null;
+            Throwable error = null;
+            try {
+                refreshed = gauge.getValue();
+            } catch (Throwable e) {
+                // also errors such as a NoClassDefFoundError of a plugin gauge, which would leave it refreshing
+                error = e;
+            }
+            completed(refreshed, error, start);
+        }
+
+        /**
+         * Records the end of an evaluation started at {@code start}, on the thread which ran it.
+         */
+        private void completed(Object refreshed, Throwable error, long start) {
+            if (error == null) {
+                value = refreshed;
+            } else {
+                LOGGER.log(Level.FINE, "Error evaluating DataDog gauge " + name, error);
+            }
+            nanos = System.nanoTime() - start;
+            refreshes.update(nanos, TimeUnit.NANOSECONDS);
+            if (nanos < budgetNanos / 2) {
+                LOGGER.log(Level.INFO, "DataDog gauge {0} took {1}ms, it is evaluated inline again",
+                        new Object[]{name, TimeUnit.NANOSECONDS.toMillis(nanos)});
+                isolated.remove(name, this);
+            }
+            refreshing.set(false);
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return duration of the last evaluation
+         */
+        long getNanos() {
+            return nanos;
+        }
+    }
+}
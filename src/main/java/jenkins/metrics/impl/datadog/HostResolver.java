@@ -0,0 +1,148 @@
+package jenkins.metrics.impl.datadog;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves DogStatsD host names once, then again in the background every {@link #TTL_SECONDS}, so that a changed
+ * agent address, such as a rescheduled Kubernetes pod, is picked up without blocking senders or restarting Jenkins.
+ * <p>
+ * Only sender threads call {@link #resolve(String)}, which blocks on the first resolution of a host unless
+ * {@link #prefetch(String)} already did it. When a re-resolution fails, the last known address is kept. Hosts which
+ * were not asked for during a few TTLs are forgotten.
+ */
+final class HostResolver implements MetricSet {
+
+    private static final Logger LOGGER = Logger.getLogger(HostResolver.class.getName());
+
+    static final long TTL_SECONDS = SystemProperties.getLong(HostResolver.class.getName() + ".ttlSeconds", 60L);
+
+    /** Failed first resolutions are retried after this delay instead of on each datagram. */
+    private static final long NEGATIVE_TTL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static final int UNUSED_TTLS = 10;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Timer latency = new Timer();
+    private final Counter failures = new Counter();
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * @return the address of the host, resolved earlier or now
+     * @throws UnknownHostException when the host could not be resolved yet
+     */
+    InetAddress resolve(String host) throws UnknownHostException {
+        Entry entry = entries.computeIfAbsent(host, Entry::new);
+        entry.lastUsed = System.nanoTime();
+        InetAddress address = entry.address;
+        if (address != null) return address;
+        synchronized (entry) {
+            if (entry.address == null && System.nanoTime() - entry.failedAt >= NEGATIVE_TTL_NANOS) {
+                refresh(entry);
+            }
+        }
+        if (entry.address == null) {
+            throw new UnknownHostException("Cannot resolve DogStatsD host " + host);
+        }
+        return entry.address;
+    }
+
+    /**
+     * Resolves the host in the background, so that the first datagrams do not wait for it.
+     */
+    void prefetch(String host) {
+        Entry entry = entries.computeIfAbsent(host, Entry::new);
+        entry.lastUsed = System.nanoTime();
+        executor().execute(() -> {
+            synchronized (entry) {
+                if (entry.address == null) refresh(entry);
+            }
+        });
+    }
+
+    /**
+     * Stops the background re-resolution. Cached addresses are kept.
+     */
+    synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private synchronized ScheduledExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(
+                    new NamingThreadFactory(new DaemonThreadFactory(), "DataDog host resolver"));
+            executor.scheduleWithFixedDelay(this::refreshAll, TTL_SECONDS, TTL_SECONDS, TimeUnit.SECONDS);
+        }
+        return executor;
+    }
+
+    private void refreshAll() {
+        long unusedSince = System.nanoTime() - TimeUnit.SECONDS.toNanos(TTL_SECONDS * UNUSED_TTLS);
+        entries.values().removeIf(entry -> entry.lastUsed - unusedSince < 0);
+        for (Entry entry : entries.values()) {
+            synchronized (entry) {
+                refresh(entry);
+            }
+        }
+    }
+
+    private void refresh(Entry entry) {
+        long start = System.nanoTime();
+        try {
+            InetAddress address = InetAddress.getByName(entry.host);
+            if (entry.address != null && !entry.address.equals(address)) {
+                LOGGER.log(Level.INFO, "DogStatsD host {0} moved from {1} to {2}",
+                        new Object[]{entry.host, entry.address.getHostAddress(), address.getHostAddress()});
+            }
+            entry.address = address;
+        } catch (UnknownHostException e) {
+            failures.inc();
+            entry.failedAt = System.nanoTime();
+            LOGGER.log(entry.address == null ? Level.WARNING : Level.FINE,
+                    "Cannot resolve DogStatsD host " + entry.host, e);
+        } finally {
+            latency.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("latency", latency);
+        metrics.put("failures", failures);
+        metrics.put("hosts", (Gauge<Integer>) entries::size);
+        return metrics;
+    }
+
+    private static final class Entry {
+        private final String host;
+        private volatile InetAddress address;
+        private volatile long lastUsed;
+        private long failedAt = System.nanoTime() - NEGATIVE_TTL_NANOS;
+
+        Entry(String host) {
+            this.host = host;
+        }
+    }
+}
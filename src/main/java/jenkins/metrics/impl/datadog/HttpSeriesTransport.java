@@ -0,0 +1,378 @@
+package jenkins.metrics.impl.datadog;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Transport posting series to a DataDog compatible HTTP intake, in the JSON format of the {@code /api/v1/series}
+ * API, for controllers without a DogStatsD agent.
+ * <p>
+ * Series are appended to a JSON body until it reaches the maximum payload size, then the body is gzipped and handed
+ * to an {@link AsyncSender}: the reporting thread only encodes, while posting and retrying happen on the sender
+ * thread. Failed posts, answered with 429 or a server error or failing with an I/O error, are retried with an
+ * exponential backoff. Other client errors are not retried. Bodies which still fail are lost, unless the endpoint
+ * has a {@link SpillQueue} to replay them from once the intake recovers: each series carries its timestamp, so that
+ * replayed points land where they belong. Connections are kept alive by {@link HttpURLConnection} between posts, as
+ * responses are read to the end.
+ * <p>
+ * DogStatsD distributions and histograms do not exist in this API, so the values of aggregated metrics are sent as
+ * gauges with their tag. Counts carry the interval of the lane, which the intake needs to interpret their delta.
+ * Non ASCII characters are escaped, so that the body size in bytes is its length.
+ */
+class HttpSeriesTransport implements SeriesTransport, MetricSet {
+
+    private static final Logger LOGGER = Logger.getLogger(HttpSeriesTransport.class.getName());
+
+    static final String DEFAULT_URL = "https://api.datadoghq.com/api/v1/series";
+    static final int DEFAULT_MAX_PAYLOAD_SIZE = 512 * 1024;
+    static final int MIN_MAX_PAYLOAD_SIZE = 4096;
+
+    static final int MAX_ATTEMPTS = 4;
+    static final long DEFAULT_RETRY_DELAY_MILLIS = 1000;
+
+    private static final int TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(10);
+    private static final long CLOSE_TIMEOUT_SECONDS = 5;
+
+    private static final String HEADER = "{\"series\":[";
+    private static final String FOOTER = "]}";
+
+    private final URL url;
+    private final String apiKey;
+    private final int maxPayloadSize;
+    private final boolean compress;
+    private final int maxBatchSize;
+    private final long retryDelayMillis;
+    private final AsyncSender sender;
+    private final Counter retries = new Counter();
+
+    // only used by the reporting thread
+    private final StringBuilder body = new StringBuilder();
+    private final StringBuilder series = new StringBuilder();
+    private final Map<String, String> names = new HashMap<>();
+    private final Map<String, String> seriesTags = new HashMap<>();
+    private String endpointTags = "";
+    private List<String> tags;
+    private long timestamp;
+    private long interval;
+
+    private volatile boolean closing;
+
+    /**
+     * @param apiKey sent as the {@code DD-API-KEY} header, or {@code null}
+     * @param tags tags added to every series, as {@code key:value}
+     * @param maxPayloadSize maximum size in bytes of a body before compression
+     * @param compress whether bodies are gzipped
+     * @param queueCapacity maximum number of bodies waiting to be sent
+     * @param retryDelayMillis delay before the first retry, doubled on each following one
+     */
+    HttpSeriesTransport(URL url, String apiKey, List<String> tags, int maxPayloadSize, boolean compress,
+                        int queueCapacity, OverflowPolicy overflowPolicy, long retryDelayMillis) {
+        this(url, apiKey, tags, maxPayloadSize, compress, queueCapacity, overflowPolicy, retryDelayMillis, null,
+                AsyncSender.REPLAY_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param spill where bodies which cannot be posted are kept until the intake recovers, or {@code null}
+     * @param replayIntervalMillis time between two bodies replayed from the spill queue
+     */
+    HttpSeriesTransport(URL url, String apiKey, List<String> tags, int maxPayloadSize, boolean compress,
+                        int queueCapacity, OverflowPolicy overflowPolicy, long retryDelayMillis, SpillQueue spill,
+                        long replayIntervalMillis) {
+        this.url = url;
+        this.apiKey = apiKey;
+        this.maxPayloadSize = Math.max(maxPayloadSize, MIN_MAX_PAYLOAD_SIZE);
+        this.compress = compress;
+        this.retryDelayMillis = retryDelayMillis;
+        setTags(tags);
+        // a gzipped body can be slightly larger than the raw one when it does not compress
+        this.maxBatchSize = this.maxPayloadSize + this.maxPayloadSize / 100 + 1024;
+        this.sender = new AsyncSender("DataDog sender to " + url, new AsyncSender.Channel() {
+            @Override
+            public void open() {
+            }
+
+            @Override
+            public boolean write(ByteBuffer batch) throws IOException {
+                return post(batch);
+            }
+
+            @Override
+            public void close() {
+            }
+        }, maxBatchSize, queueCapacity, overflowPolicy, spill, replayIntervalMillis);
+    }
+
+    @Override
+    public void setTags(List<String> tags) {
+        if (!tags.equals(this.tags)) {
+            this.tags = tags;
+            StringBuilder encoded = new StringBuilder();
+            for (String tag : tags) {
+                if (encoded.length() > 0) encoded.append(',');
+                appendString(encoded, tag);
+            }
+            endpointTags = encoded.toString();
+        }
+    }
+
+    @Override
+    public void begin(long timestamp) {
+        begin(timestamp, 0);
+    }
+
+    @Override
+    public void begin(long timestamp, long interval) {
+        this.timestamp = timestamp;
+        this.interval = interval;
+        body.setLength(0);
+    }
+
+    @Override
+    public void gauge(String name, String tags, long value) {
+        series(name, tags, "gauge", 0).append(value);
+        append();
+    }
+
+    @Override
+    public void gauge(String name, String tags, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) return;
+        series(name, tags, "gauge", 0).append(value);
+        append();
+    }
+
+    @Override
+    public void count(String name, String tags, long delta) {
+        series(name, tags, "count", interval).append(delta);
+        append();
+    }
+
+    @Override
+    public void sample(String name, double value, AggregationType type, String tag) {
+        gauge(name, tag, value);
+    }
+
+    @Override
+    public void end() {
+        flush();
+    }
+
+    /**
+     * Sends the queued bodies, without retrying them anymore.
+     */
+    @Override
+    public void close() throws IOException {
+        closing = true;
+        sender.close(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    AsyncSender getSender() {
+        return sender;
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<>(sender.getMetrics());
+        metrics.put("retries", retries);
+        return metrics;
+    }
+
+    /**
+     * Starts a series in {@link #series}, up to its value.
+     *
+     * @param interval seconds the value covers, only sent when positive
+     */
+    private StringBuilder series(String name, String tags, String type, long interval) {
+        series.setLength(0);
+        series.append(name(name)).append(",\"type\":\"").append(type).append('"');
+        if (interval > 0) series.append(",\"interval\":").append(interval);
+        series.append(",\"tags\":[");
+        series.append(endpointTags);
+        if (tags != null) {
+            if (!endpointTags.isEmpty()) series.append(',');
+            series.append(tags(tags));
+        }
+        return series.append("],\"points\":[[").append(timestamp).append(',');
+    }
+
+    /**
+     * @return the metric name as a JSON attribute, cached
+     */
+    private String name(String name) {
+        String json = names.get(name);
+        if (json == null) {
+            if (names.size() >= DogStatsdEncoder.MAX_CACHED_NAMES) {
+                names.clear();
+            }
+            StringBuilder encoded = new StringBuilder("{\"metric\":");
+            appendString(encoded, name);
+            json = encoded.toString();
+            names.put(name, json);
+        }
+        return json;
+    }
+
+    /**
+     * @return the tags of a series as JSON strings, cached
+     */
+    private String tags(String tags) {
+        String json = seriesTags.get(tags);
+        if (json == null) {
+            if (seriesTags.size() >= DogStatsdEncoder.MAX_CACHED_NAMES) {
+                seriesTags.clear();
+            }
+            StringBuilder encoded = new StringBuilder();
+            for (String tag : tags.split(",")) {
+                if (encoded.length() > 0) encoded.append(',');
+                appendString(encoded, tag);
+            }
+            json = encoded.toString();
+            seriesTags.put(tags, json);
+        }
+        return json;
+    }
+
+    private void append() {
+        series.append("]]}");
+        if (body.length() > 0 && body.length() + 1 + series.length() + FOOTER.length() > maxPayloadSize) {
+            flush();
+        }
+        if (body.length() == 0) {
+            body.append(HEADER);
+        } else {
+            body.append(',');
+        }
+        body.append(series);
+    }
+
+    private void flush() {
+        if (body.length() == 0) return;
+        body.append(FOOTER);
+        byte[] raw = body.toString().getBytes(StandardCharsets.US_ASCII);
+        body.setLength(0);
+        try {
+            byte[] payload = compress ? gzip(raw) : raw;
+            if (payload.length > maxBatchSize) {
+                // only a single series larger than the maximum payload size can get there
+                LOGGER.log(Level.WARNING, "Dropping a DataDog series body of {0} bytes for {1}, larger than the maximum "
+                        + "payload size", new Object[]{payload.length, url});
+                return;
+            }
+            sender.offer(payload);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error compressing DataDog series for " + url, e);
+        }
+    }
+
+    static byte[] gzip(byte[] raw) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(raw);
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Posts a body, called from the sender thread.
+     *
+     * @return whether the body was accepted, or rejected as invalid by the intake
+     */
+    private boolean post(ByteBuffer batch) throws IOException {
+        long delay = retryDelayMillis;
+        for (int attempt = 1; ; attempt++) {
+            int status;
+            try {
+                status = send(batch.duplicate());
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS || closing) throw e;
+                LOGGER.log(Level.FINE, "Error posting DataDog series to " + url + ", retrying", e);
+                status = -1;
+            }
+            if (status >= 200 && status < 300) return true;
+            if (status >= 400 && status < 500 && status != 429) {
+                LOGGER.log(Level.WARNING, "DataDog intake {0} rejected series with HTTP status {1}",
+                        new Object[]{url, status});
+                return false;
+            }
+            if (attempt >= MAX_ATTEMPTS || closing) {
+                throw new IOException("DataDog intake " + url + " answered HTTP status " + status);
+            }
+            retries.inc();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while retrying to post DataDog series to " + url, e);
+            }
+            delay *= 2;
+        }
+    }
+
+    /**
+     * @return the HTTP status of the response
+     */
+    private int send(ByteBuffer batch) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(batch.remaining());
+        connection.setRequestProperty("Content-Type", "application/json");
+        if (compress) {
+            connection.setRequestProperty("Content-Encoding", "gzip");
+        }
+        if (apiKey != null) {
+            connection.setRequestProperty("DD-API-KEY", apiKey);
+        }
+        try (OutputStream out = connection.getOutputStream()) {
+            Channels.newChannel(out).write(batch);
+        }
+        int status = connection.getResponseCode();
+        // reading the response to the end lets the connection be reused
+        try (InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+            if (in != null) {
+                byte[] discarded = new byte[1024];
+                while (in.read(discarded) >= 0) {
+                    // discard
+                }
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Appends a JSON string, escaping quotes, backslashes, control and non ASCII characters.
+     */
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7e) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
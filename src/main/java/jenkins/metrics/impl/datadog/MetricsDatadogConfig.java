@@ -1,34 +1,44 @@
 package jenkins.metrics.impl.datadog;
 
+import com.google.common.annotations.VisibleForTesting;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
 import hudson.ExtensionList;
 import hudson.Util;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.init.TermMilestone;
 import hudson.init.Terminator;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
 import hudson.util.DescribableList;
 import hudson.util.FormValidation;
+import hudson.util.Secret;
 import jenkins.model.GlobalConfiguration;
 import jenkins.model.Jenkins;
+import jenkins.util.Timer;
 import net.sf.json.JSONObject;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
 
@@ -43,13 +53,34 @@ public class MetricsDatadogConfig extends GlobalConfiguration {
 
     private transient DatadogReportersRegistry registry;
 
+    private transient volatile Future<?> started;
+
     public MetricsDatadogConfig() {
         load();
         if (endpointsList == null) {
             endpointsList = new DescribableList<DataDogEndpoint, Descriptor<DataDogEndpoint>>(this);
         }
+        // reporters are started by startReporters(), once jobs are loaded
         registry = new DatadogReportersRegistry();
-        registry.updateReporters(endpointsList.toList());
+    }
+
+    /**
+     * Starts the reporters of the saved endpoints on a background thread, so that validating endpoints and creating
+     * transports do not add to the loading of the plugin. Reports are skipped until Jenkins is fully started.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    @Restricted(NoExternalUse.class)
+    public static void startReporters() {
+        MetricsDatadogConfig config = instanceOrDie();
+        config.started = Timer.get().submit(() -> config.getRegistry().updateReporters(config.getEndpointsList().toList()));
+    }
+
+    /**
+     * @return the start of the reporters of the saved endpoints, or {@code null} before jobs are loaded
+     */
+    @VisibleForTesting
+    Future<?> getStarted() {
+        return started;
     }
 
     @Terminator(after= TermMilestone.STARTED)
@@ -76,6 +107,26 @@ public class MetricsDatadogConfig extends GlobalConfiguration {
         return registry;
     }
 
+    /**
+     * @return figures of the last report of each endpoint, for the status section of the configuration page
+     */
+    @Restricted(NoExternalUse.class)
+    public List<EndpointStatus> getStatus() {
+        return registry.getStatus();
+    }
+
+    /**
+     * @return the gauges refreshed in the background because they are slow, with their last duration, slowest first
+     */
+    @Restricted(NoExternalUse.class)
+    public List<String> getSlowGauges() {
+        List<String> gauges = new ArrayList<>();
+        for (GaugeEvaluator.SlowGauge gauge : registry.getSlowGauges()) {
+            gauges.add(gauge.getName() + " (" + TimeUnit.NANOSECONDS.toMillis(gauge.getNanos()) + " ms)");
+        }
+        return gauges;
+    }
+
     @Override
     public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
         setEndpointsList(req.bindJSONToList(DataDogEndpoint.class, json.get("endpointsList")));
@@ -86,8 +137,28 @@ public class MetricsDatadogConfig extends GlobalConfiguration {
 
     public static abstract class DataDogEndpoint extends AbstractDescribableImpl<DataDogEndpoint> {
 
+        static final int DEFAULT_REPORT_INTERVAL = 60;
+        static final int DEFAULT_ADAPTIVE_THRESHOLD = 50;
+        static final int DEFAULT_SEND_QUEUE_CAPACITY = AsyncSender.DEFAULT_CAPACITY;
+        static final int DEFAULT_FULL_REFRESH_INTERVAL = 10;
+
         private final List<Tag> tags;
         private final List<PrefixFilter> prefixFilters;
+        private int reportInterval = DEFAULT_REPORT_INTERVAL;
+        private int startupJitter;
+        private boolean spreadPhase;
+        private boolean adaptiveInterval;
+        private int adaptiveThreshold = DEFAULT_ADAPTIVE_THRESHOLD;
+        private int sendQueueCapacity = DEFAULT_SEND_QUEUE_CAPACITY;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+        private boolean skipUnchanged;
+        private int fullRefreshInterval = DEFAULT_FULL_REFRESH_INTERVAL;
+        private int seriesBudget;
+        private String expansions = ExpansionSelector.DEFAULT_EXPANSIONS;
+        private List<ExpansionOverride> expansionOverrides = new ArrayList<>();
+        private List<AggregationRule> aggregationRules = new ArrayList<>();
+        private List<ExtractionRule> extractionRules = new ArrayList<>();
+        private List<RateClass> rateClasses = new ArrayList<>();
 
         public DataDogEndpoint(List<Tag> tags, List<PrefixFilter> prefixFilters) {
             this.tags = Util.fixNull(tags);
@@ -110,30 +181,302 @@ public class MetricsDatadogConfig extends GlobalConfiguration {
             return new ArrayList<PrefixFilter>(prefixFilters);
         }
 
+        /**
+         * @return seconds between two reports
+         */
+        public int getReportInterval() {
+            // 0 when loaded from a configuration saved before this setting existed
+            return reportInterval > 0 ? reportInterval : DEFAULT_REPORT_INTERVAL;
+        }
+
+        @DataBoundSetter
+        public void setReportInterval(int reportInterval) {
+            this.reportInterval = reportInterval;
+        }
+
+        /**
+         * @return maximum random delay in seconds added before the first report
+         */
+        public int getStartupJitter() {
+            return Math.max(startupJitter, 0);
+        }
+
+        @DataBoundSetter
+        public void setStartupJitter(int startupJitter) {
+            this.startupJitter = startupJitter;
+        }
+
+        public boolean isSpreadPhase() {
+            return spreadPhase;
+        }
+
+        @DataBoundSetter
+        public void setSpreadPhase(boolean spreadPhase) {
+            this.spreadPhase = spreadPhase;
+        }
+
+        public boolean isAdaptiveInterval() {
+            return adaptiveInterval;
+        }
+
+        @DataBoundSetter
+        public void setAdaptiveInterval(boolean adaptiveInterval) {
+            this.adaptiveInterval = adaptiveInterval;
+        }
+
+        /**
+         * @return share of the report interval, in percent, a report may take before the interval is lengthened
+         */
+        public int getAdaptiveThreshold() {
+            return adaptiveThreshold > 0 && adaptiveThreshold <= 100 ? adaptiveThreshold : DEFAULT_ADAPTIVE_THRESHOLD;
+        }
+
+        @DataBoundSetter
+        public void setAdaptiveThreshold(int adaptiveThreshold) {
+            this.adaptiveThreshold = adaptiveThreshold;
+        }
+
+        /**
+         * @return maximum number of datagrams waiting to be sent
+         */
+        public int getSendQueueCapacity() {
+            return sendQueueCapacity > 0 ? sendQueueCapacity : DEFAULT_SEND_QUEUE_CAPACITY;
+        }
+
+        @DataBoundSetter
+        public void setSendQueueCapacity(int sendQueueCapacity) {
+            this.sendQueueCapacity = sendQueueCapacity;
+        }
+
+        @NonNull
+        public OverflowPolicy getOverflowPolicy() {
+            return overflowPolicy != null ? overflowPolicy : OverflowPolicy.DROP_OLDEST;
+        }
+
+        @DataBoundSetter
+        public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+        }
+
+        /**
+         * @return whether series whose value did not change since they were last sent are skipped
+         */
+        public boolean isSkipUnchanged() {
+            return skipUnchanged;
+        }
+
+        @DataBoundSetter
+        public void setSkipUnchanged(boolean skipUnchanged) {
+            this.skipUnchanged = skipUnchanged;
+        }
+
+        /**
+         * @return number of reports between two reports sending every series when skipping unchanged series
+         */
+        public int getFullRefreshInterval() {
+            return fullRefreshInterval > 0 ? fullRefreshInterval : DEFAULT_FULL_REFRESH_INTERVAL;
+        }
+
+        @DataBoundSetter
+        public void setFullRefreshInterval(int fullRefreshInterval) {
+            this.fullRefreshInterval = fullRefreshInterval;
+        }
+
+        /**
+         * @return maximum number of series reported, 0 for no limit
+         */
+        public int getSeriesBudget() {
+            return Math.max(seriesBudget, 0);
+        }
+
+        @DataBoundSetter
+        public void setSeriesBudget(int seriesBudget) {
+            this.seriesBudget = seriesBudget;
+        }
+
+        /**
+         * @return comma separated expansions sent for histograms, meters and timers
+         */
+        @NonNull
+        public String getExpansions() {
+            // null when loaded from a configuration saved before this setting existed
+            return expansions != null ? expansions : ExpansionSelector.DEFAULT_EXPANSIONS;
+        }
+
+        @DataBoundSetter
+        public void setExpansions(String expansions) {
+            this.expansions = Util.fixNull(expansions).trim();
+        }
+
+        @NonNull
+        public List<ExpansionOverride> getExpansionOverrides() {
+            return expansionOverrides != null ? new ArrayList<>(expansionOverrides) : new ArrayList<>();
+        }
+
+        @DataBoundSetter
+        public void setExpansionOverrides(List<ExpansionOverride> expansionOverrides) {
+            this.expansionOverrides = Util.fixNull(expansionOverrides);
+        }
+
+        @NonNull
+        public List<AggregationRule> getAggregationRules() {
+            return aggregationRules != null ? new ArrayList<>(aggregationRules) : new ArrayList<>();
+        }
+
+        @DataBoundSetter
+        public void setAggregationRules(List<AggregationRule> aggregationRules) {
+            this.aggregationRules = Util.fixNull(aggregationRules);
+        }
+
+        AggregationSelector getAggregationSelector() {
+            List<AggregationRule> rules = getAggregationRules();
+            return rules.isEmpty() ? AggregationSelector.NONE : new AggregationSelector(rules);
+        }
+
+        @NonNull
+        public List<ExtractionRule> getExtractionRules() {
+            return extractionRules != null ? new ArrayList<>(extractionRules) : new ArrayList<>();
+        }
+
+        @DataBoundSetter
+        public void setExtractionRules(List<ExtractionRule> extractionRules) {
+            this.extractionRules = Util.fixNull(extractionRules);
+        }
+
+        TagExtractor getTagExtractor() {
+            List<ExtractionRule> rules = getExtractionRules();
+            return rules.isEmpty() ? TagExtractor.NONE : new TagExtractor(rules);
+        }
+
+        ExpansionSelector getExpansionSelector() {
+            return new ExpansionSelector(ExpansionSelector.parse(getExpansions(), null), getExpansionOverrides());
+        }
+
+        @NonNull
+        public List<RateClass> getRateClasses() {
+            return rateClasses != null ? new ArrayList<>(rateClasses) : new ArrayList<>();
+        }
+
+        @DataBoundSetter
+        public void setRateClasses(List<RateClass> rateClasses) {
+            this.rateClasses = Util.fixNull(rateClasses);
+        }
+
+        ReportSchedule getSchedule() {
+            return getSchedule(getReportInterval());
+        }
+
+        /**
+         * @return the schedule of the endpoint with another interval, for its rate classes
+         */
+        ReportSchedule getSchedule(int interval) {
+            return new ReportSchedule(interval, getStartupJitter(), spreadPhase, adaptiveInterval, getAdaptiveThreshold());
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
             DataDogEndpoint that = (DataDogEndpoint) o;
             return Objects.equals(tags, that.tags) &&
-                   Objects.equals(prefixFilters, that.prefixFilters);
+                   Objects.equals(prefixFilters, that.prefixFilters) &&
+                   Objects.equals(getSchedule(), that.getSchedule()) &&
+                   getSendQueueCapacity() == that.getSendQueueCapacity() &&
+                   getOverflowPolicy() == that.getOverflowPolicy() &&
+                   skipUnchanged == that.skipUnchanged &&
+                   getFullRefreshInterval() == that.getFullRefreshInterval() &&
+                   getSeriesBudget() == that.getSeriesBudget() &&
+                   Objects.equals(getExpansions(), that.getExpansions()) &&
+                   Objects.equals(getExpansionOverrides(), that.getExpansionOverrides()) &&
+                   Objects.equals(getAggregationRules(), that.getAggregationRules()) &&
+                   Objects.equals(getExtractionRules(), that.getExtractionRules()) &&
+                   Objects.equals(getRateClasses(), that.getRateClasses());
         }
 
         @Override
         public int hashCode() {
             return Objects.hash(
-                Stream.concat(tags.stream(), prefixFilters.stream())
-                      .collect(Collectors.toList())
+                tags,
+                prefixFilters,
+                getSchedule(),
+                getSendQueueCapacity(),
+                getOverflowPolicy(),
+                skipUnchanged,
+                getFullRefreshInterval(),
+                getSeriesBudget(),
+                getExpansions(),
+                getExpansionOverrides(),
+                getAggregationRules(),
+                getExtractionRules(),
+                getRateClasses()
             );
         }
 
         abstract boolean isValid();
+
+        /**
+         * @return whether the transport of this endpoint can be kept when it is reconfigured into the other one
+         */
+        abstract boolean hasSameTransport(DataDogEndpoint other);
+
+        /**
+         * @return whether the queue of the transport is configured the same way as in the other endpoint
+         */
+        final boolean hasSameSendQueue(DataDogEndpoint other) {
+            return getSendQueueCapacity() == other.getSendQueueCapacity()
+                    && getOverflowPolicy() == other.getOverflowPolicy();
+        }
+
+        /**
+         * @return where the metrics are sent, used to name the metrics of the endpoint itself
+         */
+        abstract String getTarget();
+    }
+
+    public static abstract class DataDogEndpointDescriptor extends Descriptor<DataDogEndpoint> {
+
+        public FormValidation doCheckReportInterval(@QueryParameter int value) {
+            if (value <= 0) return FormValidation.error(Messages.DataDogEndpointDescriptor_errors_validation_invalidReportInterval());
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckStartupJitter(@QueryParameter int value) {
+            if (value < 0) return FormValidation.error(Messages.DataDogEndpointDescriptor_errors_validation_invalidStartupJitter());
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckAdaptiveThreshold(@QueryParameter int value) {
+            if (value <= 0 || value > 100) return FormValidation.error(Messages.DataDogEndpointDescriptor_errors_validation_invalidAdaptiveThreshold());
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckExpansions(@QueryParameter String value) {
+            return checkExpansions(value);
+        }
+
+        public FormValidation doCheckFullRefreshInterval(@QueryParameter int value) {
+            if (value <= 0) return FormValidation.error(Messages.DataDogEndpointDescriptor_errors_validation_invalidFullRefreshInterval());
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckSeriesBudget(@QueryParameter int value) {
+            if (value < 0) return FormValidation.error(Messages.DataDogEndpointDescriptor_errors_validation_invalidSeriesBudget());
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckSendQueueCapacity(@QueryParameter int value) {
+            if (value <= 0) return FormValidation.error(Messages.DataDogEndpointDescriptor_errors_validation_invalidSendQueueCapacity());
+            return FormValidation.ok();
+        }
     }
 
     public static class DatadogUdpEndpoint extends DataDogEndpoint {
 
         private final String statsdHost;
         private final int port;
+        // boxed to tell endpoints saved before batching from those which turned it off
+        private Boolean batchPackets = Boolean.TRUE;
+        private int maxPacketSize;
 
         @DataBoundConstructor
         public DatadogUdpEndpoint(List<PrefixFilter> prefixFilters, List<Tag> tags, String statsdHost, int port) {
@@ -150,8 +493,39 @@ public class MetricsDatadogConfig extends GlobalConfiguration {
             return port;
         }
 
+        protected Object readResolve() {
+            if (batchPackets == null) {
+                batchPackets = Boolean.TRUE;
+            }
+            return this;
+        }
+
+        /**
+         * @return whether series are packed into as few datagrams as possible, instead of one datagram per series
+         */
+        public boolean isBatchPackets() {
+            return batchPackets == null || batchPackets;
+        }
+
+        @DataBoundSetter
+        public void setBatchPackets(boolean batchPackets) {
+            this.batchPackets = batchPackets;
+        }
+
+        /**
+         * @return maximum datagram size in bytes when batching packets, or 0 to pick it from the target address
+         */
+        public int getMaxPacketSize() {
+            return Math.max(maxPacketSize, 0);
+        }
+
+        @DataBoundSetter
+        public void setMaxPacketSize(int maxPacketSize) {
+            this.maxPacketSize = maxPacketSize;
+        }
+
         @Extension
-        public static class DescriptorImpl extends Descriptor<DataDogEndpoint> {
+        public static class DescriptorImpl extends DataDogEndpointDescriptor {
 
             @Override
             public String getDisplayName() {
@@ -171,6 +545,16 @@ public class MetricsDatadogConfig extends GlobalConfiguration {
                 }
                 return FormValidation.ok("OK");
             }
+
+            public FormValidation doCheckMaxPacketSize(@QueryParameter int value, @QueryParameter String statsdHost) {
+                if (value < 0 || value > BatchingUdpTransport.MAX_PACKET_SIZE) {
+                    return FormValidation.error(Messages.DatadogUdpEndpoint_DescriptorImpl_errors_validation_invalidMaxPacketSize(BatchingUdpTransport.MAX_PACKET_SIZE));
+                }
+                if (value > BatchingUdpTransport.DEFAULT_MAX_PACKET_SIZE && !BatchingUdpTransport.isLoopback(statsdHost)) {
+                    return FormValidation.warning(Messages.DatadogUdpEndpoint_DescriptorImpl_errors_validation_largeMaxPacketSize(BatchingUdpTransport.DEFAULT_MAX_PACKET_SIZE));
+                }
+                return FormValidation.ok();
+            }
         }
 
         @Override
@@ -178,12 +562,23 @@ public class MetricsDatadogConfig extends GlobalConfiguration {
             if (this == o) return true;
             if (!(o instanceof DatadogUdpEndpoint)) return false;
             DatadogUdpEndpoint that = (DatadogUdpEndpoint) o;
-            return port == that.port && Objects.equals(statsdHost, that.statsdHost) && super.equals(o);
+            return port == that.port && Objects.equals(statsdHost, that.statsdHost) &&
+                   isBatchPackets() == that.isBatchPackets() && getMaxPacketSize() == that.getMaxPacketSize() &&
+                   super.equals(o);
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(statsdHost, port, getTags());
+            return Objects.hash(super.hashCode(), statsdHost, port, isBatchPackets(), getMaxPacketSize());
+        }
+
+        @Override
+        boolean hasSameTransport(DataDogEndpoint other) {
+            if (!(other instanceof DatadogUdpEndpoint)) return false;
+            DatadogUdpEndpoint that = (DatadogUdpEndpoint) other;
+            return port == that.port && Objects.equals(statsdHost, that.statsdHost) &&
+                   isBatchPackets() == that.isBatchPackets() && getMaxPacketSize() == that.getMaxPacketSize() &&
+                   hasSameSendQueue(that);
         }
 
         @Override
@@ -194,15 +589,17 @@ public class MetricsDatadogConfig extends GlobalConfiguration {
                     '}';
         }
 
+        @Override
+        String getTarget() {
+            return "udp:" + statsdHost + ":" + port;
+        }
+
+        /**
+         * Does not resolve the host, which is done in the background by the {@link HostResolver} of the transport.
+         */
         @Override
         public boolean isValid() {
-            try {
-                if (this.statsdHost == null || this.statsdHost.isEmpty()) return false;
-                checkResolvable();
-            } catch (UnknownHostException|IllegalArgumentException e) {
-                return false;
-            }
-            return true;
+            return this.statsdHost != null && !this.statsdHost.isEmpty() && this.port > 0 && this.port <= 65535;
         }
 
         private void checkResolvable() throws UnknownHostException, IllegalArgumentException {
@@ -213,6 +610,281 @@ public class MetricsDatadogConfig extends GlobalConfiguration {
         }
     }
 
+    public static class DatadogUdsEndpoint extends DataDogEndpoint {
+
+        static final String DEFAULT_SOCKET_PATH = "/var/run/datadog/dsd.socket";
+
+        private final String socketPath;
+        private int maxPacketSize;
+        private int sendTimeout;
+
+        @DataBoundConstructor
+        public DatadogUdsEndpoint(List<PrefixFilter> prefixFilters, List<Tag> tags, String socketPath) {
+            super(tags, prefixFilters);
+            this.socketPath = Util.fixEmptyAndTrim(socketPath);
+        }
+
+        public String getSocketPath() {
+            return socketPath;
+        }
+
+        /**
+         * @return maximum datagram size in bytes, or 0 for the default size
+         */
+        public int getMaxPacketSize() {
+            return Math.max(maxPacketSize, 0);
+        }
+
+        @DataBoundSetter
+        public void setMaxPacketSize(int maxPacketSize) {
+            this.maxPacketSize = maxPacketSize;
+        }
+
+        /**
+         * @return milliseconds to wait for room when the socket buffer is full, or 0 to drop datagrams right away
+         */
+        public int getSendTimeout() {
+            return Math.max(sendTimeout, 0);
+        }
+
+        @DataBoundSetter
+        public void setSendTimeout(int sendTimeout) {
+            this.sendTimeout = sendTimeout;
+        }
+
+        @Extension
+        public static class DescriptorImpl extends DataDogEndpointDescriptor {
+
+            @Override
+            public String getDisplayName() {
+                return Messages.DatadogUdsEndpoint_DescriptorImpl_displayName();
+            }
+
+            public FormValidation doTestUdsEndpoint(@QueryParameter("socketPath") final String formSocketPath) {
+                Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+                String path = Util.fixEmptyAndTrim(formSocketPath);
+                if (path == null) return FormValidation.error(Messages.DatadogUdsEndpoint_DescriptorImpl_errors_validation_emptySocketPath());
+                if (!new File(path).exists()) return FormValidation.error(Messages.DatadogUdsEndpoint_DescriptorImpl_errors_validation_socketNotFound());
+                return FormValidation.ok("OK");
+            }
+
+            public FormValidation doCheckMaxPacketSize(@QueryParameter int value) {
+                if (value < 0 || value > BatchingUdsTransport.MAX_PACKET_SIZE) {
+                    return FormValidation.error(Messages.DatadogUdsEndpoint_DescriptorImpl_errors_validation_invalidMaxPacketSize(BatchingUdsTransport.MAX_PACKET_SIZE));
+                }
+                return FormValidation.ok();
+            }
+
+            public FormValidation doCheckSendTimeout(@QueryParameter int value) {
+                if (value < 0) return FormValidation.error(Messages.DatadogUdsEndpoint_DescriptorImpl_errors_validation_invalidSendTimeout());
+                return FormValidation.ok();
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof DatadogUdsEndpoint)) return false;
+            DatadogUdsEndpoint that = (DatadogUdsEndpoint) o;
+            return Objects.equals(socketPath, that.socketPath) &&
+                   getMaxPacketSize() == that.getMaxPacketSize() && getSendTimeout() == that.getSendTimeout() &&
+                   super.equals(o);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(super.hashCode(), socketPath, getMaxPacketSize(), getSendTimeout());
+        }
+
+        @Override
+        boolean hasSameTransport(DataDogEndpoint other) {
+            if (!(other instanceof DatadogUdsEndpoint)) return false;
+            DatadogUdsEndpoint that = (DatadogUdsEndpoint) other;
+            return Objects.equals(socketPath, that.socketPath) &&
+                   getMaxPacketSize() == that.getMaxPacketSize() && getSendTimeout() == that.getSendTimeout() &&
+                   hasSameSendQueue(that);
+        }
+
+        @Override
+        public String toString() {
+            return "DatadogUdsEndpoint{" +
+                    "socketPath='" + socketPath + '\'' +
+                    '}';
+        }
+
+        @Override
+        String getTarget() {
+            return "uds:" + socketPath;
+        }
+
+        @Override
+        public boolean isValid() {
+            return socketPath != null && getMaxPacketSize() <= BatchingUdsTransport.MAX_PACKET_SIZE;
+        }
+    }
+
+    public static class DatadogHttpEndpoint extends DataDogEndpoint {
+
+        static final int MAX_SPILL_SIZE = SpillQueue.MAX_CAPACITY / (1024 * 1024);
+
+        private final String url;
+        private Secret apiKey;
+        private int maxPayloadSize;
+        private boolean compress = true;
+        private int spillSize;
+
+        @DataBoundConstructor
+        public DatadogHttpEndpoint(List<PrefixFilter> prefixFilters, List<Tag> tags, String url) {
+            super(tags, prefixFilters);
+            String trimmed = Util.fixEmptyAndTrim(url);
+            this.url = trimmed != null ? trimmed : HttpSeriesTransport.DEFAULT_URL;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public Secret getApiKey() {
+            return apiKey;
+        }
+
+        @DataBoundSetter
+        public void setApiKey(Secret apiKey) {
+            this.apiKey = apiKey;
+        }
+
+        /**
+         * @return maximum size in bytes of a request body before compression
+         */
+        public int getMaxPayloadSize() {
+            return maxPayloadSize > 0 ? maxPayloadSize : HttpSeriesTransport.DEFAULT_MAX_PAYLOAD_SIZE;
+        }
+
+        @DataBoundSetter
+        public void setMaxPayloadSize(int maxPayloadSize) {
+            this.maxPayloadSize = maxPayloadSize;
+        }
+
+        /**
+         * @return whether request bodies are gzipped
+         */
+        public boolean isCompress() {
+            return compress;
+        }
+
+        @DataBoundSetter
+        public void setCompress(boolean compress) {
+            this.compress = compress;
+        }
+
+        /**
+         * @return size in MiB of the file keeping the series which cannot be posted, 0 to drop them
+         */
+        public int getSpillSize() {
+            // the form only warns about sizes out of range, which would overflow the capacity in bytes
+            return Math.min(Math.max(spillSize, 0), MAX_SPILL_SIZE);
+        }
+
+        @DataBoundSetter
+        public void setSpillSize(int spillSize) {
+            this.spillSize = spillSize;
+        }
+
+        /**
+         * @return the URL of the intake, or {@code null} when it is not an HTTP or HTTPS URL
+         */
+        URL toURL() {
+            try {
+                URL parsed = new URL(url);
+                String protocol = parsed.getProtocol();
+                return protocol.equals("http") || protocol.equals("https") ? parsed : null;
+            } catch (MalformedURLException e) {
+                return null;
+            }
+        }
+
+        @Extension
+        public static class DescriptorImpl extends DataDogEndpointDescriptor {
+
+            @Override
+            public String getDisplayName() {
+                return Messages.DatadogHttpEndpoint_DescriptorImpl_displayName();
+            }
+
+            public FormValidation doCheckUrl(@QueryParameter String value) {
+                if (new DatadogHttpEndpoint(null, null, value).toURL() == null) {
+                    return FormValidation.error(Messages.DatadogHttpEndpoint_DescriptorImpl_errors_validation_invalidUrl());
+                }
+                return FormValidation.ok();
+            }
+
+            public FormValidation doCheckMaxPayloadSize(@QueryParameter int value) {
+                if (value != 0 && value < HttpSeriesTransport.MIN_MAX_PAYLOAD_SIZE) {
+                    return FormValidation.error(Messages.DatadogHttpEndpoint_DescriptorImpl_errors_validation_invalidMaxPayloadSize(HttpSeriesTransport.MIN_MAX_PAYLOAD_SIZE));
+                }
+                return FormValidation.ok();
+            }
+
+            public FormValidation doCheckSpillSize(@QueryParameter int value) {
+                if (value < 0 || value > MAX_SPILL_SIZE) {
+                    return FormValidation.error(Messages.DatadogHttpEndpoint_DescriptorImpl_errors_validation_invalidSpillSize(MAX_SPILL_SIZE));
+                }
+                return FormValidation.ok();
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof DatadogHttpEndpoint)) return false;
+            DatadogHttpEndpoint that = (DatadogHttpEndpoint) o;
+            return Objects.equals(url, that.url) && Objects.equals(apiKey, that.apiKey) &&
+                   getMaxPayloadSize() == that.getMaxPayloadSize() && compress == that.compress &&
+                   getSpillSize() == that.getSpillSize() && super.equals(o);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(super.hashCode(), url, getMaxPayloadSize(), compress, getSpillSize());
+        }
+
+        @Override
+        boolean hasSameTransport(DataDogEndpoint other) {
+            if (!(other instanceof DatadogHttpEndpoint)) return false;
+            DatadogHttpEndpoint that = (DatadogHttpEndpoint) other;
+            return Objects.equals(url, that.url) && Objects.equals(apiKey, that.apiKey) &&
+                   getMaxPayloadSize() == that.getMaxPayloadSize() && compress == that.compress &&
+                   getSpillSize() == that.getSpillSize() && hasSameSendQueue(that);
+        }
+
+        @Override
+        public String toString() {
+            return "DatadogHttpEndpoint{" +
+                    "url='" + url + '\'' +
+                    '}';
+        }
+
+        @Override
+        String getTarget() {
+            return "http:" + url;
+        }
+
+        @Override
+        public boolean isValid() {
+            return toURL() != null;
+        }
+    }
+
+    static FormValidation checkExpansions(String value) {
+        List<String> unknown = new ArrayList<>();
+        ExpansionSelector.parse(value, unknown);
+        if (!unknown.isEmpty()) {
+            return FormValidation.error(Messages.DataDogEndpointDescriptor_errors_validation_unknownExpansions(
+                    String.join(", ", unknown), ExpansionSelector.names()));
+        }
+        return FormValidation.ok();
+    }
+
     public static class Tag extends AbstractDescribableImpl<Tag> {
 
         private final String key;
@@ -288,6 +960,299 @@ public class MetricsDatadogConfig extends GlobalConfiguration {
         }
     }
 
+    public static class ExpansionOverride extends AbstractDescribableImpl<ExpansionOverride> {
+        private final String prefix;
+        private final String expansions;
+
+        @DataBoundConstructor
+        public ExpansionOverride(String prefix, String expansions) {
+            this.prefix = Util.fixEmptyAndTrim(prefix);
+            this.expansions = Util.fixNull(expansions).trim();
+        }
+
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public String getExpansions() {
+            return expansions;
+        }
+
+        @Extension
+        public static class DescriptorImpl extends Descriptor<ExpansionOverride> {
+            @Override
+            public String getDisplayName() {
+                return Messages.ExpansionOverride_DescriptorImpl_displayName();
+            }
+
+            public FormValidation doCheckExpansions(@QueryParameter String value) {
+                return checkExpansions(value);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ExpansionOverride that = (ExpansionOverride) o;
+            return Objects.equals(prefix, that.prefix) && Objects.equals(expansions, that.expansions);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(prefix, expansions);
+        }
+    }
+
+    /**
+     * Metrics of an endpoint reported at their own interval, by a reporter sharing the transport of the endpoint and
+     * charged to its series budget.
+     */
+    public static class RateClass extends AbstractDescribableImpl<RateClass> {
+        private final String prefixes;
+        private final int interval;
+
+        /**
+         * @param prefixes prefixes of the metrics of this class, separated by commas or spaces
+         * @param interval seconds between two reports of these metrics
+         */
+        @DataBoundConstructor
+        public RateClass(String prefixes, int interval) {
+            this.prefixes = Util.fixNull(prefixes).trim();
+            this.interval = interval;
+        }
+
+        public String getPrefixes() {
+            return prefixes;
+        }
+
+        public int getInterval() {
+            return interval;
+        }
+
+        List<PrefixFilter> getPrefixFilters() {
+            List<PrefixFilter> filters = new ArrayList<>();
+            for (String prefix : prefixes.split("[,\\s]+")) {
+                if (!prefix.isEmpty()) {
+                    filters.add(new PrefixFilter(prefix));
+                }
+            }
+            return filters;
+        }
+
+        boolean isValid() {
+            return interval > 0 && !getPrefixFilters().isEmpty();
+        }
+
+        @Extension
+        public static class DescriptorImpl extends Descriptor<RateClass> {
+            @Override
+            public String getDisplayName() {
+                return Messages.RateClass_DescriptorImpl_displayName();
+            }
+
+            public FormValidation doCheckPrefixes(@QueryParameter String value) {
+                if (new RateClass(value, 1).getPrefixFilters().isEmpty()) {
+                    return FormValidation.error(Messages.RateClass_DescriptorImpl_errors_validation_missingPrefixes());
+                }
+                return FormValidation.ok();
+            }
+
+            public FormValidation doCheckInterval(@QueryParameter int value) {
+                if (value <= 0) return FormValidation.error(Messages.DataDogEndpointDescriptor_errors_validation_invalidReportInterval());
+                return FormValidation.ok();
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            RateClass that = (RateClass) o;
+            return interval == that.interval && Objects.equals(prefixes, that.prefixes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(prefixes, interval);
+        }
+
+        @Override
+        public String toString() {
+            return "RateClass{" +
+                    "prefixes='" + prefixes + '\'' +
+                    ", interval=" + interval +
+                    '}';
+        }
+    }
+
+    public static class AggregationRule extends AbstractDescribableImpl<AggregationRule> {
+        static final String DEFAULT_TAG = "name";
+        static final String DEFAULT_STATISTIC = "mean";
+
+        private final String pattern;
+        private String tag;
+        private AggregationType type = AggregationType.DISTRIBUTION;
+        private String statistic = DEFAULT_STATISTIC;
+
+        @DataBoundConstructor
+        public AggregationRule(String pattern) {
+            this.pattern = Util.fixEmptyAndTrim(pattern);
+        }
+
+        public String getPattern() {
+            return pattern;
+        }
+
+        /**
+         * @return the tag holding the part matched by the wildcard, by default the name segment before it
+         */
+        @NonNull
+        public String getTag() {
+            return tag != null ? tag : AggregationSelector.defaultTag(pattern);
+        }
+
+        @DataBoundSetter
+        public void setTag(String tag) {
+            this.tag = Util.fixEmptyAndTrim(tag);
+        }
+
+        @NonNull
+        public AggregationType getType() {
+            return type != null ? type : AggregationType.DISTRIBUTION;
+        }
+
+        @DataBoundSetter
+        public void setType(AggregationType type) {
+            this.type = type;
+        }
+
+        @NonNull
+        public String getStatistic() {
+            return statistic != null ? statistic : DEFAULT_STATISTIC;
+        }
+
+        @DataBoundSetter
+        public void setStatistic(String statistic) {
+            String trimmed = Util.fixEmptyAndTrim(statistic);
+            this.statistic = trimmed != null ? trimmed : DEFAULT_STATISTIC;
+        }
+
+        @Extension
+        public static class DescriptorImpl extends Descriptor<AggregationRule> {
+            @Override
+            public String getDisplayName() {
+                return Messages.AggregationRule_DescriptorImpl_displayName();
+            }
+
+            public FormValidation doCheckPattern(@QueryParameter String value) {
+                if (!AggregationSelector.isValidPattern(Util.fixEmptyAndTrim(value))) {
+                    return FormValidation.error(Messages.AggregationRule_DescriptorImpl_errors_validation_invalidPattern());
+                }
+                return FormValidation.ok();
+            }
+
+            public FormValidation doCheckStatistic(@QueryParameter String value) {
+                if (Util.fixEmptyAndTrim(value) != null && AggregationSelector.parseStatistic(value) == null) {
+                    return FormValidation.error(Messages.AggregationRule_DescriptorImpl_errors_validation_invalidStatistic(
+                            ExpansionSelector.names()));
+                }
+                return FormValidation.ok();
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            AggregationRule that = (AggregationRule) o;
+            return Objects.equals(pattern, that.pattern) && getTag().equals(that.getTag()) &&
+                   getType() == that.getType() && getStatistic().equals(that.getStatistic());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(pattern, getTag(), getType(), getStatistic());
+        }
+    }
+
+    public static class ExtractionRule extends AbstractDescribableImpl<ExtractionRule> {
+
+        private final String pattern;
+        private final String name;
+        private final String tags;
+
+        @DataBoundConstructor
+        public ExtractionRule(String pattern, String name, String tags) {
+            this.pattern = Util.fixEmptyAndTrim(pattern);
+            this.name = Util.fixEmptyAndTrim(name);
+            this.tags = Util.fixEmptyAndTrim(tags);
+        }
+
+        public String getPattern() {
+            return pattern;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @NonNull
+        public String getTags() {
+            return tags != null ? tags : "";
+        }
+
+        @Extension
+        public static class DescriptorImpl extends Descriptor<ExtractionRule> {
+            @Override
+            public String getDisplayName() {
+                return Messages.ExtractionRule_DescriptorImpl_displayName();
+            }
+
+            public FormValidation doCheckPattern(@QueryParameter String value) {
+                String error = TagExtractor.checkPattern(Util.fixEmptyAndTrim(value));
+                if (error != null) {
+                    return FormValidation.error(Messages.ExtractionRule_DescriptorImpl_errors_validation_invalidPattern(error));
+                }
+                return FormValidation.ok();
+            }
+
+            public FormValidation doCheckName(@QueryParameter String pattern, @QueryParameter String value) {
+                if (Util.fixEmptyAndTrim(value) == null) {
+                    return FormValidation.error(Messages.ExtractionRule_DescriptorImpl_errors_validation_missingName());
+                }
+                return checkGroups(pattern, value);
+            }
+
+            public FormValidation doCheckTags(@QueryParameter String pattern, @QueryParameter String value) {
+                return checkGroups(pattern, Util.fixNull(value));
+            }
+
+            private static FormValidation checkGroups(String pattern, String template) {
+                pattern = Util.fixEmptyAndTrim(pattern);
+                if (TagExtractor.checkPattern(pattern) != null) return FormValidation.ok();
+                int groups = Pattern.compile(pattern).matcher("").groupCount();
+                if (TagExtractor.maxGroup(template) > groups) {
+                    return FormValidation.error(Messages.ExtractionRule_DescriptorImpl_errors_validation_missingGroup(groups));
+                }
+                return FormValidation.ok();
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ExtractionRule that = (ExtractionRule) o;
+            return Objects.equals(pattern, that.pattern) && Objects.equals(name, that.name) &&
+                   getTags().equals(that.getTags());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(pattern, name, getTags());
+        }
+    }
 
     @NonNull
     public static MetricsDatadogConfig instanceOrDie() {
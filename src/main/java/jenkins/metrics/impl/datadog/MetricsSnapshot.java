@@ -0,0 +1,188 @@
+package jenkins.metrics.impl.datadog;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metered;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Values of the metrics read during one report.
+ * <p>
+ * The snapshot is shared by all the endpoints reported at the same time, so a gauge is evaluated and a histogram
+ * or timer is sampled at most once per report, whatever the number of endpoints selecting it. Only the metrics
+ * selected by at least one endpoint are read. A snapshot is used by a single reporting thread, except for
+ * {@link #read(String, Metric)} which a {@link ParallelCollector} calls from several threads for distinct metrics
+ * before the reporters run.
+ * <p>
+ * The time spent reading metrics is measured, so that reporters can tell evaluation from serialization, along with
+ * the slowest metric of the report.
+ */
+class MetricsSnapshot {
+
+    private static final Object NO_VALUE = new Object();
+
+    private final long timestamp;
+    private final long interval;
+    private final GaugeEvaluator evaluator;
+    private final Map<String, Object> values = new ConcurrentHashMap<>();
+
+    private final LongAdder evaluationNanos = new LongAdder();
+    private volatile String slowestName;
+    private volatile long slowestNanos;
+
+    /**
+     * @param timestamp epoch time of the report in seconds
+     */
+    MetricsSnapshot(long timestamp) {
+        this(timestamp, null);
+    }
+
+    /**
+     * @param timestamp epoch time of the report in seconds
+     * @param evaluator evaluates the gauges, or {@code null} to evaluate them inline
+     */
+    MetricsSnapshot(long timestamp, GaugeEvaluator evaluator) {
+        this(timestamp, 0, evaluator);
+    }
+
+    /**
+     * @param timestamp epoch time of the report in seconds
+     * @param interval seconds between the reports of the lane, or 0 when unknown
+     * @param evaluator evaluates the gauges, or {@code null} to evaluate them inline
+     */
+    MetricsSnapshot(long timestamp, long interval, GaugeEvaluator evaluator) {
+        this.timestamp = timestamp;
+        this.interval = interval;
+        this.evaluator = evaluator;
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    long getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return the current value of the gauge, or {@code null} if it has none
+     */
+    Object getGaugeValue(String name, Gauge<?> gauge) {
+        Object value = values.get(name);
+        if (value == null) {
+            long start = System.nanoTime();
+            value = evaluator == null ? gauge.getValue() : evaluator.evaluate(name, gauge);
+            evaluated(name, start);
+            values.put(name, value == null ? NO_VALUE : value);
+        }
+        return value == NO_VALUE ? null : value;
+    }
+
+    long getCount(String name, Counting counting) {
+        Object value = values.get(name);
+        if (value == null) {
+            long start = System.nanoTime();
+            value = counting.getCount();
+            evaluated(name, start);
+            values.put(name, value);
+        }
+        return (Long) value;
+    }
+
+    /**
+     * @param metric an histogram, meter or timer
+     */
+    Sample getSample(String name, Metric metric) {
+        Sample sample = (Sample) values.get(name);
+        if (sample == null) {
+            long start = System.nanoTime();
+            sample = new Sample(metric);
+            evaluated(name, start);
+            values.put(name, sample);
+        }
+        return sample;
+    }
+
+    /**
+     * Reads a metric the way reporters do, so that they find its value in the snapshot.
+     */
+    void read(String name, Metric metric) {
+        if (metric instanceof Gauge) {
+            getGaugeValue(name, (Gauge<?>) metric);
+        } else if (metric instanceof Counter) {
+            getCount(name, (Counter) metric);
+        } else if (metric instanceof Histogram || metric instanceof Meter || metric instanceof Timer) {
+            getSample(name, metric);
+        }
+    }
+
+    private void evaluated(String name, long start) {
+        long nanos = System.nanoTime() - start;
+        evaluationNanos.add(nanos);
+        if (slowestName == null || nanos > slowestNanos) {
+            synchronized (this) {
+                if (slowestName == null || nanos > slowestNanos) {
+                    slowestNanos = nanos;
+                    slowestName = name;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return total time spent reading metrics so far, summed over the threads reading them
+     */
+    long getEvaluationNanos() {
+        return evaluationNanos.sum();
+    }
+
+    /**
+     * @return name of the metric which took the longest to read so far, or {@code null}
+     */
+    String getSlowestName() {
+        return slowestName;
+    }
+
+    long getSlowestNanos() {
+        return slowestNanos;
+    }
+
+    /**
+     * Count, rates and/or distribution of an histogram, meter or timer, depending on the metric type.
+     */
+    static final class Sample {
+        final long count;
+        final Snapshot snapshot;
+        final double meanRate;
+        final double oneMinuteRate;
+        final double fiveMinuteRate;
+        final double fifteenMinuteRate;
+
+        Sample(Metric metric) {
+            this.count = metric instanceof Counting ? ((Counting) metric).getCount() : 0;
+            this.snapshot = metric instanceof Sampling ? ((Sampling) metric).getSnapshot() : null;
+            if (metric instanceof Metered) {
+                Metered metered = (Metered) metric;
+                this.meanRate = metered.getMeanRate();
+                this.oneMinuteRate = metered.getOneMinuteRate();
+                this.fiveMinuteRate = metered.getFiveMinuteRate();
+                this.fifteenMinuteRate = metered.getFifteenMinuteRate();
+            } else {
+                this.meanRate = 0;
+                this.oneMinuteRate = 0;
+                this.fiveMinuteRate = 0;
+                this.fifteenMinuteRate = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package jenkins.metrics.impl.datadog;
+
+/**
+ * What to drop when the send queue of an endpoint is full.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Drop the oldest queued batch, favoring fresh values.
+     */
+    DROP_OLDEST {
+        @Override
+        public String getDisplayName() {
+            return Messages.OverflowPolicy_DROP_OLDEST();
+        }
+    },
+
+    /**
+     * Drop the batch being queued, keeping the queued ones.
+     */
+    DROP_NEWEST {
+        @Override
+        public String getDisplayName() {
+            return Messages.OverflowPolicy_DROP_NEWEST();
+        }
+    };
+
+    public abstract String getDisplayName();
+}
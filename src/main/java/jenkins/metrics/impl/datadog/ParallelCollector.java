@@ -0,0 +1,84 @@
+package jenkins.metrics.impl.datadog;
+
+import com.codahale.metrics.Metric;
+import jenkins.util.SystemProperties;
+
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Reads the metrics of a report into its {@link MetricsSnapshot} on a bounded {@link ForkJoinPool}, before the
+ * reporters encode them.
+ * <p>
+ * The selected metrics are split into shards of {@link #shardSize} metrics which are read in parallel, histogram
+ * and timer snapshots being the expensive part. Encoding then stays on the reporting thread, as it is cheap and
+ * each reporter keeps state between reports. Disabled unless the {@code parallelism} system property prefixed with
+ * the class name is above 1, and only used for reports of at least two shards.
+ */
+class ParallelCollector {
+
+    static final int DEFAULT_SHARD_SIZE = 1024;
+
+    private final ForkJoinPool pool;
+    private final int shardSize;
+
+    ParallelCollector(int parallelism, int shardSize) {
+        this.pool = new ForkJoinPool(parallelism);
+        this.shardSize = Math.max(shardSize, 1);
+    }
+
+    /**
+     * @return a collector configured by system properties, or {@code null} when parallel collection is disabled
+     */
+    static ParallelCollector fromSystemProperties() {
+        int parallelism = SystemProperties.getInteger(ParallelCollector.class.getName() + ".parallelism", 0);
+        if (parallelism <= 1) return null;
+        return new ParallelCollector(parallelism,
+                SystemProperties.getInteger(ParallelCollector.class.getName() + ".shardSize", DEFAULT_SHARD_SIZE));
+    }
+
+    /**
+     * Reads the metrics into the snapshot, in parallel when there are enough of them.
+     */
+    void collect(MetricsSnapshot snapshot, Map<String, Metric> metrics) {
+        if (metrics.size() < 2 * shardSize) return;
+        @SuppressWarnings("unchecked")
+        Map.Entry<String, Metric>[] entries = metrics.entrySet().toArray(new Map.Entry[0]);
+        pool.invoke(new Shard(snapshot, entries, 0, entries.length));
+    }
+
+    void stop() {
+        pool.shutdownNow();
+    }
+
+    int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    private final class Shard extends RecursiveAction {
+        private final MetricsSnapshot snapshot;
+        private final Map.Entry<String, Metric>[] entries;
+        private final int from;
+        private final int to;
+
+        Shard(MetricsSnapshot snapshot, Map.Entry<String, Metric>[] entries, int from, int to) {
+            this.snapshot = snapshot;
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= shardSize) {
+                for (int i = from; i < to; i++) {
+                    snapshot.read(entries[i].getKey(), entries[i].getValue());
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Shard(snapshot, entries, from, middle), new Shard(snapshot, entries, middle, to));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package jenkins.metrics.impl.datadog;
+
+import java.util.Objects;
+
+/**
+ * When reports of an endpoint happen. Endpoints with equal schedules are reported together, out of the same
+ * {@link MetricsSnapshot}.
+ */
+final class ReportSchedule {
+
+    private final int interval;
+    private final int startupJitter;
+    private final boolean spreadPhase;
+    private final boolean adaptive;
+    private final int adaptiveThreshold;
+
+    /**
+     * @param interval seconds between two reports
+     * @param startupJitter maximum random delay in seconds added before the first report
+     * @param spreadPhase whether the first report is offset by a delay derived from this Jenkins instance
+     * @param adaptive whether the interval is lengthened when reports take too long
+     * @param adaptiveThreshold share of the interval, in percent, a report may take before it is lengthened
+     */
+    ReportSchedule(int interval, int startupJitter, boolean spreadPhase, boolean adaptive, int adaptiveThreshold) {
+        this.interval = interval;
+        this.startupJitter = startupJitter;
+        this.spreadPhase = spreadPhase;
+        this.adaptive = adaptive;
+        this.adaptiveThreshold = adaptiveThreshold;
+    }
+
+    int getInterval() {
+        return interval;
+    }
+
+    int getStartupJitter() {
+        return startupJitter;
+    }
+
+    boolean isSpreadPhase() {
+        return spreadPhase;
+    }
+
+    boolean isAdaptive() {
+        return adaptive;
+    }
+
+    int getAdaptiveThreshold() {
+        return adaptiveThreshold;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ReportSchedule that = (ReportSchedule) o;
+        return interval == that.interval &&
+                startupJitter == that.startupJitter &&
+                spreadPhase == that.spreadPhase &&
+                adaptive == that.adaptive &&
+                adaptiveThreshold == that.adaptiveThreshold;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(interval, startupJitter, spreadPhase, adaptive, adaptiveThreshold);
+    }
+
+    @Override
+    public String toString() {
+        return "ReportSchedule{" +
+                "interval=" + interval +
+                ", startupJitter=" + startupJitter +
+                ", spreadPhase=" + spreadPhase +
+                ", adaptive=" + adaptive +
+                ", adaptiveThreshold=" + adaptiveThreshold +
+                '}';
+    }
+}
@@ -0,0 +1,118 @@
+package jenkins.metrics.impl.datadog;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the reports of one endpoint: timers over all reports, and the figures of the last one for the status
+ * section of the configuration page.
+ * <p>
+ * Evaluation is the time spent reading metrics which were not already read for another endpoint of the same report,
+ * serialization is the rest of the report, mostly encoding series. Writing to the network is measured by the
+ * {@link AsyncSender}. Metrics read by a {@link ParallelCollector} before the reporters run are not counted here.
+ */
+final class ReportStats implements MetricSet {
+
+    private final Timer duration = new Timer();
+    private final Timer evaluation = new Timer();
+    private final Timer serialization = new Timer();
+
+    // written by the reporting thread only
+    private volatile long timestamp;
+    private volatile long durationNanos;
+    private volatile long evaluationNanos;
+    private volatile int metrics;
+    private volatile int filtered;
+    private volatile int series;
+    private volatile int skipped;
+    private volatile String slowestMetric;
+    private volatile long slowestNanos;
+
+    /**
+     * @param timestamp epoch time of the report in seconds
+     * @param metrics number of metrics selected by the endpoint
+     * @param filtered number of metrics excluded by the prefix filters of the endpoint
+     * @param series number of series sent
+     * @param skipped number of series skipped as unchanged
+     */
+    void record(long timestamp, long durationNanos, long evaluationNanos, int metrics, int filtered, int series,
+                int skipped, String slowestMetric, long slowestNanos) {
+        duration.update(durationNanos, TimeUnit.NANOSECONDS);
+        evaluation.update(evaluationNanos, TimeUnit.NANOSECONDS);
+        serialization.update(durationNanos - evaluationNanos, TimeUnit.NANOSECONDS);
+        this.timestamp = timestamp;
+        this.durationNanos = durationNanos;
+        this.evaluationNanos = evaluationNanos;
+        this.metrics = metrics;
+        this.filtered = filtered;
+        this.series = series;
+        this.skipped = skipped;
+        this.slowestMetric = slowestMetric;
+        this.slowestNanos = slowestNanos;
+    }
+
+    /**
+     * @return epoch time of the last report in seconds, or 0 before the first one
+     */
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    long getDurationNanos() {
+        return durationNanos;
+    }
+
+    long getEvaluationNanos() {
+        return evaluationNanos;
+    }
+
+    long getSerializationNanos() {
+        return durationNanos - evaluationNanos;
+    }
+
+    int getMetricCount() {
+        return metrics;
+    }
+
+    int getFilteredCount() {
+        return filtered;
+    }
+
+    int getSeriesCount() {
+        return series;
+    }
+
+    int getSkippedCount() {
+        return skipped;
+    }
+
+    /**
+     * @return the metric of the last report which took the longest to read, or {@code null}
+     */
+    String getSlowestMetric() {
+        return slowestMetric;
+    }
+
+    long getSlowestNanos() {
+        return slowestNanos;
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> result = new HashMap<>();
+        result.put("report.duration", duration);
+        result.put("report.evaluation", evaluation);
+        result.put("report.serialization", serialization);
+        result.put("report.metrics", (Gauge<Integer>) this::getMetricCount);
+        result.put("report.filtered", (Gauge<Integer>) this::getFilteredCount);
+        result.put("report.series", (Gauge<Integer>) this::getSeriesCount);
+        result.put("report.skipped", (Gauge<Integer>) this::getSkippedCount);
+        return result;
+    }
+}
@@ -0,0 +1,139 @@
+package jenkins.metrics.impl.datadog;
+
+import com.google.common.annotations.VisibleForTesting;
+import hudson.init.InitMilestone;
+import jenkins.model.Jenkins;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodic report of the endpoints sharing a {@link ReportSchedule}.
+ * <p>
+ * Each run takes one {@link MetricsSnapshot} for all its reporters, read in parallel beforehand when a
+ * {@link ParallelCollector} is configured, then schedules the next run on the shared scheduler. With an adaptive
+ * schedule, the period is doubled (up to {@link #MAX_ADAPTIVE_FACTOR} times the configured interval) while a report
+ * takes more than the configured share of it, and halved back once reports are fast again.
+ */
+class ReportingLane implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(ReportingLane.class.getName());
+
+    static final int MAX_ADAPTIVE_FACTOR = 8;
+
+    private final ReportSchedule schedule;
+    private final ScheduledExecutorService scheduler;
+    private final GaugeEvaluator evaluator;
+    private final ParallelCollector collector;
+    private volatile List<DatadogEndpointReporter> reporters = Collections.emptyList();
+
+    private long periodNanos;
+    private long nextRunNanos;
+    private ScheduledFuture<?> future;
+    private boolean stopped;
+
+    /**
+     * @param evaluator evaluates the gauges, or {@code null} to evaluate them inline
+     * @param collector reads the metrics in parallel before they are reported, or {@code null}
+     */
+    ReportingLane(ReportSchedule schedule, ScheduledExecutorService scheduler, GaugeEvaluator evaluator,
+                  ParallelCollector collector) {
+        this.schedule = schedule;
+        this.scheduler = scheduler;
+        this.evaluator = evaluator;
+        this.collector = collector;
+        this.periodNanos = TimeUnit.SECONDS.toNanos(schedule.getInterval());
+    }
+
+    void setReporters(List<DatadogEndpointReporter> reporters) {
+        this.reporters = Collections.unmodifiableList(reporters);
+    }
+
+    synchronized void start(long initialDelay, TimeUnit unit) {
+        nextRunNanos = System.nanoTime() + unit.toNanos(initialDelay);
+        future = scheduler.schedule(this, initialDelay, unit);
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        if (isStarting()) {
+            LOGGER.log(Level.FINE, "Jenkins is starting, skipping DataDog report for {0}", schedule);
+        } else {
+            try {
+                MetricsSnapshot snapshot = new MetricsSnapshot(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()),
+                        getPeriod(TimeUnit.SECONDS), evaluator);
+                if (collector != null) {
+                    for (DatadogEndpointReporter reporter : reporters) {
+                        collector.collect(snapshot, reporter.getMetrics().getMetrics());
+                    }
+                }
+                for (DatadogEndpointReporter reporter : reporters) {
+                    reporter.report(snapshot);
+                }
+            } catch (Throwable e) {
+                // never let an exception cancel the next reports
+                LOGGER.log(Level.WARNING, "Error reporting metrics to DataDog", e);
+            }
+        }
+        scheduleNext(System.nanoTime() - start);
+    }
+
+    /**
+     * @return whether Jenkins is still starting, when metrics are incomplete and the controller is busy
+     */
+    private static boolean isStarting() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        return jenkins != null && jenkins.getInitLevel().compareTo(InitMilestone.COMPLETED) < 0;
+    }
+
+    private synchronized void scheduleNext(long durationNanos) {
+        if (stopped) return;
+        if (schedule.isAdaptive()) {
+            adapt(durationNanos);
+        }
+        nextRunNanos += periodNanos;
+        long delay = Math.max(0, nextRunNanos - System.nanoTime());
+        if (delay == 0) {
+            // late, do not try to catch up with missed reports
+            nextRunNanos = System.nanoTime();
+        }
+        future = scheduler.schedule(this, delay, TimeUnit.NANOSECONDS);
+    }
+
+    @VisibleForTesting
+    void adapt(long durationNanos) {
+        long basePeriod = TimeUnit.SECONDS.toNanos(schedule.getInterval());
+        long threshold = periodNanos / 100 * schedule.getAdaptiveThreshold();
+        if (durationNanos > threshold && periodNanos < basePeriod * MAX_ADAPTIVE_FACTOR) {
+            periodNanos = Math.min(periodNanos * 2, basePeriod * MAX_ADAPTIVE_FACTOR);
+            LOGGER.log(Level.INFO, "DataDog report took {0}ms, increasing report interval to {1}s for {2}",
+                    new Object[]{TimeUnit.NANOSECONDS.toMillis(durationNanos), TimeUnit.NANOSECONDS.toSeconds(periodNanos), schedule});
+        } else if (periodNanos > basePeriod && durationNanos < threshold / 4) {
+            // the report would still take less than half of the threshold with a halved period
+            periodNanos = Math.max(periodNanos / 2, basePeriod);
+            LOGGER.log(Level.INFO, "DataDog report took {0}ms, decreasing report interval to {1}s for {2}",
+                    new Object[]{TimeUnit.NANOSECONDS.toMillis(durationNanos), TimeUnit.NANOSECONDS.toSeconds(periodNanos), schedule});
+        }
+    }
+
+    ReportSchedule getSchedule() {
+        return schedule;
+    }
+
+    synchronized long getPeriod(TimeUnit unit) {
+        return unit.convert(periodNanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,47 @@
+package jenkins.metrics.impl.datadog;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.AdministrativeMonitor;
+import jenkins.model.GlobalConfiguration;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Warns administrators that DataDog endpoints leave out new metrics because they reached their series budget.
+ *
+ * @see CardinalityGuard
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public class SeriesBudgetMonitor extends AdministrativeMonitor {
+
+    @Override
+    public String getDisplayName() {
+        return Messages.SeriesBudgetMonitor_displayName();
+    }
+
+    @Override
+    public boolean isActivated() {
+        return !getEndpoints().isEmpty();
+    }
+
+    /**
+     * @return the endpoints which rejected metrics
+     */
+    public List<EndpointStatus> getEndpoints() {
+        MetricsDatadogConfig config = ExtensionList.lookup(GlobalConfiguration.class).get(MetricsDatadogConfig.class);
+        if (config == null) return Collections.emptyList();
+        List<EndpointStatus> endpoints = new ArrayList<>();
+        for (EndpointStatus status : config.getStatus()) {
+            if (status.getRejected() > 0) {
+                endpoints.add(status);
+            }
+        }
+        return endpoints;
+    }
+}
@@ -0,0 +1,76 @@
+package jenkins.metrics.impl.datadog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination of the series reported for an endpoint.
+ * <p>
+ * Reports are written by a single thread: {@link #begin(long)}, the series, then {@link #end()}. Values are passed
+ * as primitives and names and tags are stable between reports, so that transports can encode series without
+ * allocating.
+ */
+interface SeriesTransport extends Closeable {
+
+    /**
+     * Sets the tags added to every series, called before a report when they changed.
+     *
+     * @param tags tags as {@code key:value}
+     */
+    void setTags(List<String> tags);
+
+    /**
+     * Starts a report.
+     *
+     * @param timestamp seconds since the epoch
+     */
+    void begin(long timestamp) throws IOException;
+
+    /**
+     * Starts a report of a lane.
+     *
+     * @param timestamp seconds since the epoch
+     * @param interval seconds between the reports of the lane, over which counts are accumulated
+     */
+    default void begin(long timestamp, long interval) throws IOException {
+        begin(timestamp);
+    }
+
+    default void gauge(String name, long value) throws IOException {
+        gauge(name, null, value);
+    }
+
+    default void gauge(String name, double value) throws IOException {
+        gauge(name, null, value);
+    }
+
+    default void count(String name, long delta) throws IOException {
+        count(name, null, delta);
+    }
+
+    /**
+     * @param tags tags of this series, as {@code key:value,key:value}, added to the tags of the endpoint, or
+     *             {@code null}
+     */
+    void gauge(String name, String tags, long value) throws IOException;
+
+    void gauge(String name, String tags, double value) throws IOException;
+
+    /**
+     * @param delta increase of the count since the previous report
+     */
+    void count(String name, String tags, long delta) throws IOException;
+
+    /**
+     * Sends one value of a distribution or histogram aggregating several metrics.
+     *
+     * @param tag tag of this value, as {@code key:value}, added to the tags of the endpoint
+     */
+    void sample(String name, double value, AggregationType type, String tag) throws IOException;
+
+    /**
+     * Ends the report, sending the series which are still buffered.
+     */
+    void end() throws IOException;
+}
@@ -0,0 +1,71 @@
+package jenkins.metrics.impl.datadog;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Transport of an endpoint used by the reporters of its rate classes, which writes to it without owning it: closing
+ * it leaves the transport open, and its metrics are only registered by the reporter of the endpoint.
+ * <p>
+ * Reports of all the lanes run on the same scheduler thread, so the reports of an endpoint and of its rate classes
+ * never write to the transport at the same time.
+ */
+final class SharedTransport implements SeriesTransport {
+
+    private final SeriesTransport transport;
+
+    SharedTransport(SeriesTransport transport) {
+        this.transport = transport;
+    }
+
+    @Override
+    public void setTags(List<String> tags) {
+        transport.setTags(tags);
+    }
+
+    @Override
+    public void begin(long timestamp) throws IOException {
+        transport.begin(timestamp);
+    }
+
+    @Override
+    public void begin(long timestamp, long interval) throws IOException {
+        transport.begin(timestamp, interval);
+    }
+
+    @Override
+    public void gauge(String name, String tags, long value) throws IOException {
+        transport.gauge(name, tags, value);
+    }
+
+    @Override
+    public void gauge(String name, String tags, double value) throws IOException {
+        transport.gauge(name, tags, value);
+    }
+
+    @Override
+    public void count(String name, String tags, long delta) throws IOException {
+        transport.count(name, tags, delta);
+    }
+
+    @Override
+    public void sample(String name, double value, AggregationType type, String tag) throws IOException {
+        transport.sample(name, value, type, tag);
+    }
+
+    @Override
+    public void end() throws IOException {
+        transport.end();
+    }
+
+    /**
+     * Leaves the transport open, it is closed by the reporter of the endpoint.
+     */
+    @Override
+    public void close() {
+    }
+
+    SeriesTransport getTransport() {
+        return transport;
+    }
+}
@@ -1,34 +1,88 @@
 package jenkins.metrics.impl.datadog;
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.Metric;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
-import java.util.List;
 
 import jenkins.metrics.impl.datadog.MetricsDatadogConfig.PrefixFilter;
 
 public class SimpleMetricFilter implements MetricFilter {
     private static final Logger LOGGER = Logger.getLogger(SimpleMetricFilter.class.getName());
-    private List<PrefixFilter> prefixes;
+
+    /**
+     * Upper bound of remembered match results; the cache is reset once reached so that ephemeral
+     * metric names (e.g. deleted jobs or agents) cannot grow it forever.
+     */
+    static final int MAX_CACHED_NAMES = 100_000;
+
+    /**
+     * Sorted prefixes where none is a prefix of another one, so the only candidate for a metric name
+     * is the greatest prefix lower or equal to that name.
+     */
+    private final String[] prefixes;
+    private final ConcurrentMap<String, Boolean> cache = new ConcurrentHashMap<>();
 
     public SimpleMetricFilter(List<PrefixFilter> prefixes) {
-        this.prefixes =
-            prefixes.stream()
-                    .distinct()
-                    .filter(p -> p != null && !p.getPrefix().isEmpty())
-                    .collect(Collectors.toList());
+        this.prefixes = compile(prefixes);
+    }
+
+    private static String[] compile(List<PrefixFilter> prefixFilters) {
+        TreeSet<String> sorted = new TreeSet<>();
+        for (PrefixFilter p : prefixFilters) {
+            if (p != null && p.getPrefix() != null && !p.getPrefix().isEmpty()) {
+                sorted.add(p.getPrefix());
+            }
+        }
+        List<String> compiled = new ArrayList<>(sorted.size());
+        String previous = null;
+        for (String prefix : sorted) {
+            // "vm.memory" is redundant with "vm": any name it matches is already matched
+            if (previous != null && prefix.startsWith(previous)) continue;
+            compiled.add(prefix);
+            previous = prefix;
+        }
+        return compiled.toArray(new String[0]);
     }
 
     public boolean matches(String name, Metric metric) {
-        boolean match =
-        this.prefixes.stream()
-                     .anyMatch(p -> name.startsWith(p.getPrefix()));
-        if (match) {
-            LOGGER.log(Level.FINE, "Metric {0} should be included", new Object[]{name});
-        } else {
-            LOGGER.log(Level.FINE, "Metric {0} does not match the filter", new Object[]{name});
+        Boolean match = cache.get(name);
+        if (match == null) {
+            match = lookup(name);
+            if (cache.size() >= MAX_CACHED_NAMES) {
+                cache.clear();
+            }
+            cache.put(name, match);
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            if (match) {
+                LOGGER.log(Level.FINE, "Metric {0} should be included", name);
+            } else {
+                LOGGER.log(Level.FINE, "Metric {0} does not match the filter", name);
+            }
         }
         return match;
     }
-}
\ No newline at end of file
+
+    private boolean lookup(String name) {
+        int low = 0;
+        int high = prefixes.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = prefixes[mid].compareTo(name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        // prefixes[high] is now the greatest prefix lower than name
+        return high >= 0 && name.startsWith(prefixes[high]);
+    }
+}
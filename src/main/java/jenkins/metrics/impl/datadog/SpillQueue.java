@@ -0,0 +1,247 @@
+package jenkins.metrics.impl.datadog;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded queue of batches which could not be sent, kept in a memory-mapped file so that they survive a restart.
+ * <p>
+ * The file is a ring: a header followed by the data area, where batches are appended as their length and their
+ * bytes, wrapping around at the end. When a batch does not fit, the oldest batches are evicted. Head and tail are
+ * offsets which only grow, stored in the header along with the number of batches, so that the queue is found as it
+ * was when the file is opened again. A header which does not match the configured size is reset.
+ * <p>
+ * The file is opened on first use, by the sender thread which is the only one adding and removing batches.
+ */
+class SpillQueue implements MetricSet {
+
+    private static final Logger LOGGER = Logger.getLogger(SpillQueue.class.getName());
+
+    static final int MAX_CAPACITY = 1024 * 1024 * 1024;
+
+    private static final int MAGIC = 0x44445350;
+    private static final int HEADER_SIZE = 32;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int HEAD_OFFSET = 8;
+    private static final int TAIL_OFFSET = 16;
+    private static final int COUNT_OFFSET = 24;
+
+    private final File file;
+    private final int capacity;
+    private final byte[] length = new byte[4];
+
+    private MappedByteBuffer buffer;
+    private boolean unavailable;
+    private long head;
+    private long tail;
+    private volatile int count;
+    private volatile long used;
+
+    private final Counter spilled = new Counter();
+    private final Counter evicted = new Counter();
+    private final Counter replayed = new Counter();
+
+    /**
+     * @param capacity size in bytes of the data area
+     */
+    SpillQueue(File file, int capacity) {
+        this.file = file;
+        this.capacity = Math.min(capacity, MAX_CAPACITY);
+    }
+
+    /**
+     * Appends a batch, evicting the oldest ones until it fits.
+     *
+     * @return whether the batch was kept
+     */
+    synchronized boolean add(byte[] batch) {
+        int needed = 4 + batch.length;
+        if (!open() || needed > capacity) {
+            evicted.inc();
+            return false;
+        }
+        while (capacity - (tail - head) < needed) {
+            evicted.inc();
+            skip();
+        }
+        write(tail, toBytes(batch.length, length), 4);
+        write(tail + 4, batch, batch.length);
+        tail += needed;
+        count++;
+        spilled.inc();
+        updateHeader();
+        return true;
+    }
+
+    /**
+     * @return the oldest batch, or {@code null} when the queue is empty
+     */
+    synchronized byte[] peek() {
+        if (!open() || count == 0) return null;
+        read(head, length, 4);
+        int size = toInt(length);
+        if (size < 0 || size > tail - head - 4) {
+            LOGGER.log(Level.WARNING, "Discarding the corrupted DataDog spill file {0}", file);
+            reset();
+            return null;
+        }
+        byte[] batch = new byte[size];
+        read(head + 4, batch, size);
+        return batch;
+    }
+
+    /**
+     * Removes the oldest batch, once replayed.
+     */
+    synchronized void remove() {
+        if (!open() || count == 0) return;
+        skip();
+        replayed.inc();
+        updateHeader();
+    }
+
+    /**
+     * Opens the file if needed, so that batches spilled before a restart are found.
+     */
+    synchronized boolean isEmpty() {
+        return !open() || count == 0;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * @return bytes used in the data area
+     */
+    long getUsed() {
+        return used;
+    }
+
+    /**
+     * Flushes the file, which stays mapped until the buffer is garbage collected.
+     */
+    synchronized void close() {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("spill.batches", (Gauge<Integer>) this::getCount);
+        metrics.put("spill.bytes", (Gauge<Long>) this::getUsed);
+        metrics.put("spill.spilled", spilled);
+        metrics.put("spill.evicted", evicted);
+        metrics.put("spill.replayed", replayed);
+        return metrics;
+    }
+
+    /**
+     * @return whether the file is mapped, opening it when needed
+     */
+    private boolean open() {
+        if (buffer != null) return true;
+        if (unavailable) return false;
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Cannot open the DataDog spill file " + file + ", batches which cannot be "
+                    + "sent are dropped", e);
+            unavailable = true;
+            return false;
+        }
+        head = buffer.getLong(HEAD_OFFSET);
+        tail = buffer.getLong(TAIL_OFFSET);
+        count = buffer.getInt(COUNT_OFFSET);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(CAPACITY_OFFSET) != capacity
+                || head < 0 || tail < head || tail - head > capacity || count < 0 || count > tail - head) {
+            reset();
+        } else {
+            used = tail - head;
+        }
+        return true;
+    }
+
+    private void reset() {
+        head = 0;
+        tail = 0;
+        count = 0;
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        updateHeader();
+    }
+
+    /**
+     * Moves the head past the oldest batch.
+     */
+    private void skip() {
+        read(head, length, 4);
+        head += 4 + toInt(length);
+        count--;
+        if (count == 0 || head > tail) {
+            head = tail;
+            count = 0;
+        }
+    }
+
+    private void updateHeader() {
+        buffer.putLong(HEAD_OFFSET, head);
+        buffer.putLong(TAIL_OFFSET, tail);
+        buffer.putInt(COUNT_OFFSET, count);
+        used = tail - head;
+    }
+
+    private void write(long offset, byte[] bytes, int size) {
+        int position = (int) (offset % capacity);
+        int first = Math.min(size, capacity - position);
+        buffer.position(HEADER_SIZE + position);
+        buffer.put(bytes, 0, first);
+        if (first < size) {
+            buffer.position(HEADER_SIZE);
+            buffer.put(bytes, first, size - first);
+        }
+    }
+
+    private void read(long offset, byte[] bytes, int size) {
+        int position = (int) (offset % capacity);
+        int first = Math.min(size, capacity - position);
+        buffer.position(HEADER_SIZE + position);
+        buffer.get(bytes, 0, first);
+        if (first < size) {
+            buffer.position(HEADER_SIZE);
+            buffer.get(bytes, first, size - first);
+        }
+    }
+
+    private static byte[] toBytes(int value, byte[] bytes) {
+        bytes[0] = (byte) (value >>> 24);
+        bytes[1] = (byte) (value >>> 16);
+        bytes[2] = (byte) (value >>> 8);
+        bytes[3] = (byte) value;
+        return bytes;
+    }
+
+    private static int toInt(byte[] bytes) {
+        return (bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16 | (bytes[2] & 0xff) << 8 | bytes[3] & 0xff;
+    }
+}
@@ -0,0 +1,192 @@
+package jenkins.metrics.impl.datadog;
+
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.ExtractionRule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Rewrites metric names into a fixed name and tags, following the {@link ExtractionRule}s of an endpoint.
+ * <p>
+ * A rule is a regular expression matching the whole metric name, a name template and a tags template which refer
+ * to its capture groups as {@code $1}, {@code $2}...: with {@code jenkins\.job\.(.+)\.([^.]+)\.duration},
+ * {@code jenkins.job.duration} and {@code folder:$1,job:$2}, {@code jenkins.job.team.build.duration} is sent as
+ * {@code jenkins.job.duration} tagged with {@code folder:team,job:build}. The first matching rule is used.
+ * <p>
+ * Rules and templates are compiled once per endpoint configuration. Reporters call {@link #extract(String)} once per
+ * metric name and keep the result, so matching costs nothing on later reports.
+ */
+final class TagExtractor {
+
+    static final TagExtractor NONE = new TagExtractor(new ArrayList<>());
+
+    private final List<Rule> rules = new ArrayList<>();
+
+    TagExtractor(List<ExtractionRule> extractionRules) {
+        for (ExtractionRule rule : extractionRules) {
+            Rule compiled = Rule.compile(rule);
+            if (compiled != null) {
+                rules.add(compiled);
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * @return the name and tags the metric is sent with, or {@code null} when no rule matches it
+     */
+    Extraction extract(String name) {
+        for (Rule rule : rules) {
+            Matcher matcher = rule.pattern.matcher(name);
+            if (matcher.matches()) {
+                return new Extraction(rule.name.expand(matcher, false), rule.tags(matcher));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the error in the pattern, or {@code null} when it is a valid regular expression
+     */
+    static String checkPattern(String pattern) {
+        if (pattern == null) return "";
+        try {
+            Pattern.compile(pattern);
+            return null;
+        } catch (PatternSyntaxException e) {
+            return e.getDescription();
+        }
+    }
+
+    /**
+     * @return the highest capture group referred to by the template, 0 when it refers to none
+     */
+    static int maxGroup(String template) {
+        return Template.parse(template).maxGroup;
+    }
+
+    /**
+     * Replaces the characters which end a tag or a DogStatsD line.
+     */
+    static String toTagValue(String value) {
+        return value.replaceAll("[,|#\\s]", "_");
+    }
+
+    private static final class Rule {
+        private final Pattern pattern;
+        private final Template name;
+        private final List<String> tagKeys = new ArrayList<>();
+        private final List<Template> tagValues = new ArrayList<>();
+
+        private Rule(Pattern pattern, Template name) {
+            this.pattern = pattern;
+            this.name = name;
+        }
+
+        /**
+         * @return the compiled rule, or {@code null} when it is incomplete or refers to missing groups
+         */
+        static Rule compile(ExtractionRule rule) {
+            if (rule.getPattern() == null || rule.getName() == null || checkPattern(rule.getPattern()) != null) {
+                return null;
+            }
+            Pattern pattern = Pattern.compile(rule.getPattern());
+            int groups = pattern.matcher("").groupCount();
+            Rule compiled = new Rule(pattern, Template.parse(rule.getName()));
+            if (compiled.name.maxGroup > groups) return null;
+            for (String tag : rule.getTags().split(",")) {
+                int colon = tag.indexOf(':');
+                if (colon <= 0) continue;
+                Template value = Template.parse(tag.substring(colon + 1).trim());
+                if (value.maxGroup > groups) return null;
+                compiled.tagKeys.add(tag.substring(0, colon).trim());
+                compiled.tagValues.add(value);
+            }
+            return compiled;
+        }
+
+        /**
+         * @return the tags as {@code key:value,key:value}, without those whose value is empty, or {@code null}
+         */
+        String tags(Matcher matcher) {
+            StringBuilder tags = new StringBuilder();
+            for (int i = 0; i < tagKeys.size(); i++) {
+                String value = tagValues.get(i).expand(matcher, true);
+                if (value.isEmpty()) continue;
+                if (tags.length() > 0) tags.append(',');
+                tags.append(tagKeys.get(i)).append(':').append(value);
+            }
+            return tags.length() > 0 ? tags.toString() : null;
+        }
+    }
+
+    /**
+     * Text with references to capture groups, split once into literals and group numbers.
+     */
+    private static final class Template {
+        private final List<String> literals = new ArrayList<>();
+        // group after each literal, -1 after the last one
+        private final List<Integer> groups = new ArrayList<>();
+        private int maxGroup;
+
+        static Template parse(String text) {
+            Template template = new Template();
+            StringBuilder literal = new StringBuilder();
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i++);
+                if (c != '$' || i == text.length() || !Character.isDigit(text.charAt(i))) {
+                    literal.append(c);
+                    continue;
+                }
+                int group = 0;
+                while (i < text.length() && Character.isDigit(text.charAt(i)) && group < 1000) {
+                    group = group * 10 + text.charAt(i++) - '0';
+                }
+                template.add(literal.toString(), group);
+                literal.setLength(0);
+            }
+            template.add(literal.toString(), -1);
+            return template;
+        }
+
+        private void add(String literal, int group) {
+            literals.add(literal);
+            groups.add(group);
+            maxGroup = Math.max(maxGroup, group);
+        }
+
+        String expand(Matcher matcher, boolean tagValue) {
+            StringBuilder result = new StringBuilder();
+            for (int i = 0; i < literals.size(); i++) {
+                result.append(literals.get(i));
+                int group = groups.get(i);
+                String value = group >= 0 ? matcher.group(group) : null;
+                if (value != null) {
+                    result.append(tagValue ? toTagValue(value) : value);
+                }
+            }
+            return result.toString();
+        }
+    }
+
+    /**
+     * Name and tags a metric is sent with.
+     */
+    static final class Extraction {
+        final String name;
+        /** as {@code key:value,key:value}, added to the tags of the endpoint, or {@code null} */
+        final String tags;
+
+        Extraction(String name, String tags) {
+            this.name = name;
+            this.tags = tags;
+        }
+    }
+}
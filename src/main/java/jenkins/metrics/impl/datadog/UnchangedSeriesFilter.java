@@ -0,0 +1,130 @@
+package jenkins.metrics.impl.datadog;
+
+/**
+ * Remembers the last value sent for each series, so that series whose value did not change since are skipped.
+ * Every {@code refreshInterval} reports, all series are sent again so that gaps in dashboards heal.
+ * <p>
+ * Values are kept in an open addressing table of parallel primitive arrays keyed by series name, a few tens of bytes
+ * per series on top of the name which is already held by the registry. Series which are no longer reported are
+ * forgotten on each full refresh, so the table stays in proportion to the live series.
+ */
+final class UnchangedSeriesFilter {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int refreshInterval;
+
+    private String[] names = new String[INITIAL_CAPACITY];
+    private long[] values = new long[INITIAL_CAPACITY];
+    private int[] seen = new int[INITIAL_CAPACITY];
+    private int size;
+
+    private int report;
+    private boolean refresh;
+
+    /**
+     * @param refreshInterval number of reports between two reports sending every series
+     */
+    UnchangedSeriesFilter(int refreshInterval) {
+        this.refreshInterval = Math.max(refreshInterval, 1);
+    }
+
+    /**
+     * Starts a report.
+     */
+    void begin() {
+        refresh = report % refreshInterval == 0;
+        report++;
+    }
+
+    /**
+     * Ends a report, forgetting after a full refresh the series which were not part of it.
+     */
+    void end() {
+        if (refresh) {
+            int live = 0;
+            for (int i = 0; i < names.length; i++) {
+                if (names[i] != null && seen[i] == report) live++;
+            }
+            int capacity = INITIAL_CAPACITY;
+            while (capacity < live * 4) {
+                capacity *= 2;
+            }
+            rehash(capacity, true);
+        }
+    }
+
+    boolean isRefresh() {
+        return refresh;
+    }
+
+    /**
+     * Records the value of a series.
+     *
+     * @return whether the series has to be sent, because this is a full refresh or the value changed
+     */
+    boolean changed(String name, long value) {
+        int slot = slot(names, name);
+        seen[slot] = report;
+        if (names[slot] == null) {
+            names[slot] = name;
+            values[slot] = value;
+            if (++size > names.length / 2) {
+                rehash(names.length * 2, false);
+            }
+            return true;
+        }
+        if (values[slot] == value) {
+            return refresh;
+        }
+        values[slot] = value;
+        return true;
+    }
+
+    boolean changed(String name, double value) {
+        return changed(name, Double.doubleToLongBits(value));
+    }
+
+    /**
+     * @return whether a count has to be sent, skipping zero increases between full refreshes
+     */
+    boolean changed(long delta) {
+        return delta != 0 || refresh;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static int slot(String[] names, String name) {
+        int h = name.hashCode();
+        int mask = names.length - 1;
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (names[slot] != null && !names[slot].equals(name)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Rebuilds the table with the given capacity, optionally keeping only the series seen in the current report.
+     */
+    private void rehash(int capacity, boolean seenOnly) {
+        String[] oldNames = names;
+        long[] oldValues = values;
+        int[] oldSeen = seen;
+        names = new String[capacity];
+        values = new long[capacity];
+        seen = new int[capacity];
+        size = 0;
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] != null && (!seenOnly || oldSeen[i] == report)) {
+                int slot = slot(names, oldNames[i]);
+                names[slot] = oldNames[i];
+                values[slot] = oldValues[i];
+                seen[slot] = oldSeen[i];
+                size++;
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package jenkins.metrics.impl.datadog;
+
+import jenkins.metrics.impl.datadog.AggregationSelector.Aggregation;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.AggregationRule;
+import org.coursera.metrics.datadog.DatadogReporter.Expansion;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AggregationSelectorTest {
+
+    @Test
+    public void testSelect() {
+        AggregationRule jobs = new AggregationRule("jenkins.job.*.duration");
+        AggregationRule nodes = new AggregationRule("jenkins.node.*");
+        nodes.setTag("computer");
+        nodes.setStatistic("p99");
+        AggregationRule invalid = new AggregationRule("jenkins.*.*");
+        AggregationRule queues = new AggregationRule("*.queue");
+        AggregationSelector selector = new AggregationSelector(Arrays.asList(jobs, nodes, invalid, queues));
+
+        Aggregation job = selector.select("jenkins.job.folder/build, 2.duration");
+        assertThat(job.name).isEqualTo("jenkins.job.duration");
+        assertThat(job.tag).isEqualTo("job:folder/build__2");
+        assertThat(job.type).isEqualTo(AggregationType.DISTRIBUTION);
+        assertThat(job.statistic).isEqualTo(Expansion.MEAN);
+
+        Aggregation node = selector.select("jenkins.node.linux");
+        assertThat(node.name).isEqualTo("jenkins.node");
+        assertThat(node.tag).isEqualTo("computer:linux");
+        assertThat(node.statistic).isEqualTo(Expansion.P99);
+
+        Aggregation queue = selector.select("jenkins.queue");
+        assertThat(queue.name).isEqualTo("queue");
+        assertThat(queue.tag).isEqualTo("name:jenkins");
+
+        assertThat(selector.select("jenkins.job..duration")).isNull();
+        assertThat(selector.select("jenkins.queue.size")).isNull();
+    }
+
+    @Test
+    public void testPatterns() {
+        assertThat(AggregationSelector.isValidPattern("jenkins.job.*.duration")).isTrue();
+        assertThat(AggregationSelector.isValidPattern("*.duration")).isTrue();
+        assertThat(AggregationSelector.isValidPattern("*")).isFalse();
+        assertThat(AggregationSelector.isValidPattern("jenkins.job")).isFalse();
+        assertThat(AggregationSelector.isValidPattern("jenkins.*.*")).isFalse();
+        assertThat(AggregationSelector.defaultTag("jenkins.job.*.duration")).isEqualTo("job");
+        assertThat(AggregationSelector.defaultTag("jenkins.*")).isEqualTo("jenkins");
+        assertThat(AggregationSelector.defaultTag("*.duration")).isEqualTo("name");
+        assertThat(AggregationSelector.defaultTag("jenkins.job*")).isEqualTo("name");
+        assertThat(AggregationSelector.defaultTag(null)).isEqualTo("name");
+        assertThat(AggregationSelector.parseStatistic("p95")).isEqualTo(Expansion.P95);
+        assertThat(AggregationSelector.parseStatistic("p95, p99")).isNull();
+    }
+}
@@ -0,0 +1,172 @@
+package jenkins.metrics.impl.datadog;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AsyncSenderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 10000)
+    public void testDropOldest() throws Exception {
+        StalledChannel channel = new StalledChannel();
+        AsyncSender sender = fillQueue(channel, OverflowPolicy.DROP_OLDEST);
+
+        assertThat(channel.batches).containsExactly("b0", "b2", "b3");
+        assertThat(sender.getSent()).isEqualTo(3);
+        assertThat(sender.getDropped()).isEqualTo(1);
+        assertThat(channel.closed).isTrue();
+    }
+
+    @Test(timeout = 10000)
+    public void testDropNewest() throws Exception {
+        StalledChannel channel = new StalledChannel();
+        AsyncSender sender = fillQueue(channel, OverflowPolicy.DROP_NEWEST);
+
+        assertThat(channel.batches).containsExactly("b0", "b1", "b2");
+        assertThat(sender.getSent()).isEqualTo(3);
+        assertThat(sender.getDropped()).isEqualTo(1);
+    }
+
+    @Test(timeout = 10000)
+    public void testErrorsAreCounted() {
+        AsyncSender sender = new AsyncSender("test", new StalledChannel() {
+            @Override
+            public void open() throws IOException {
+                throw new IOException("unreachable");
+            }
+        }, 16, 10, OverflowPolicy.DROP_OLDEST);
+        sender.offer(bytes("b0"));
+        sender.offer(bytes("b1"));
+        sender.close(5, TimeUnit.SECONDS);
+
+        assertThat(sender.getErrors()).isEqualTo(2);
+        assertThat(sender.getSent()).isZero();
+        assertThat(sender.getMetrics()).containsOnlyKeys("sent", "sent.bytes", "write", "dropped.queue", "dropped.socket",
+                "errors", "queue.size");
+    }
+
+    @Test(timeout = 10000)
+    public void testFailedBatchesAreSpilledAndReplayed() throws Exception {
+        FailingChannel channel = new FailingChannel();
+        SpillQueue spill = new SpillQueue(folder.newFile(), 1024);
+        AsyncSender sender = new AsyncSender("test", channel, 16, 10, OverflowPolicy.DROP_OLDEST, spill, 10);
+        sender.offer(bytes("b0"));
+        sender.offer(bytes("b1"));
+        while (spill.getCount() < 2) {
+            Thread.sleep(10);
+        }
+        assertThat(channel.batches).isEmpty();
+
+        channel.failing = false;
+        sender.offer(bytes("b2"));
+        while (!spill.isEmpty()) {
+            Thread.sleep(10);
+        }
+        sender.close(5, TimeUnit.SECONDS);
+
+        // the new batch goes first, then the spilled ones are replayed in order
+        assertThat(channel.batches).containsExactly("b2", "b0", "b1");
+        assertThat(sender.getErrors()).isEqualTo(2);
+        assertThat(sender.getSent()).isEqualTo(3);
+        assertThat(sender.getMetrics()).containsKeys("spill.batches", "spill.replayed");
+    }
+
+    @Test(timeout = 10000)
+    public void testBuffersAreReturnedToThePool() {
+        StalledChannel channel = new StalledChannel();
+        channel.resume.countDown();
+        AsyncSender sender = new AsyncSender("test", channel, 16, 10, OverflowPolicy.DROP_OLDEST);
+        ByteBuffer batch = sender.acquire();
+        assertThat(batch.isDirect()).isTrue();
+        batch.put(bytes("b0"));
+        batch.flip();
+        sender.offer(batch);
+        sender.close(5, TimeUnit.SECONDS);
+
+        assertThat(channel.batches).containsExactly("b0");
+        assertThat(sender.acquire()).isSameAs(batch);
+        assertThat(batch.position()).isZero();
+        assertThat(batch.remaining()).isEqualTo(16);
+    }
+
+    /**
+     * Queues 4 batches in a queue of 2 while the channel is stalled on the first one, then sends them.
+     */
+    private static AsyncSender fillQueue(StalledChannel channel, OverflowPolicy policy) throws Exception {
+        AsyncSender sender = new AsyncSender("test", channel, 16, 2, policy);
+        sender.offer(bytes("b0"));
+        channel.writing.await();
+        sender.offer(bytes("b1"));
+        sender.offer(bytes("b2"));
+        sender.offer(bytes("b3"));
+        assertThat(sender.getQueueSize()).isEqualTo(2);
+        channel.resume.countDown();
+        sender.close(5, TimeUnit.SECONDS);
+        return sender;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class FailingChannel implements AsyncSender.Channel {
+        final List<String> batches = new CopyOnWriteArrayList<>();
+        volatile boolean failing = true;
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public boolean write(ByteBuffer batch) throws IOException {
+            if (failing) throw new IOException("unreachable");
+            batches.add(StandardCharsets.UTF_8.decode(batch).toString());
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class StalledChannel implements AsyncSender.Channel {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        final List<String> batches = new CopyOnWriteArrayList<>();
+        volatile boolean closed;
+
+        @Override
+        public void open() throws IOException {
+        }
+
+        @Override
+        public boolean write(ByteBuffer batch) throws IOException {
+            writing.countDown();
+            try {
+                resume.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            batches.add(StandardCharsets.UTF_8.decode(batch).toString());
+            return true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package jenkins.metrics.impl.datadog;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BatchingUdpTransportTest {
+
+    private DatagramSocket agent;
+
+    @Before
+    public void setUp() throws Exception {
+        agent = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        agent.setSoTimeout(1000);
+    }
+
+    @After
+    public void tearDown() {
+        agent.close();
+    }
+
+    @Test
+    public void testPacketsStayUnderMaxSize() throws Exception {
+        int maxPacketSize = 200;
+        BatchingUdpTransport transport = new BatchingUdpTransport("127.0.0.1", agent.getLocalPort(),
+                Arrays.asList("env:test", "team:ci"), maxPacketSize);
+        transport.begin(1000L);
+        for (int i = 0; i < 100; i++) {
+            transport.gauge("jenkins.job.folder.job" + i + ".duration", i * 1.5);
+        }
+        transport.end();
+
+        List<String> packets = receive(maxPacketSize);
+        List<String> lines = new ArrayList<>();
+        for (String packet : packets) {
+            assertThat(packet.getBytes(StandardCharsets.UTF_8).length).isLessThanOrEqualTo(maxPacketSize);
+            lines.addAll(Arrays.asList(packet.split("\n")));
+        }
+        assertThat(lines).hasSize(100);
+        assertThat(lines.get(0)).isEqualTo("jenkins.job.folder.job0.duration:0|g|#env:test,team:ci");
+        assertThat(lines.get(1)).isEqualTo("jenkins.job.folder.job1.duration:1.5|g|#env:test,team:ci");
+        // lines are around 60 bytes long, so 3 of them fit in a packet
+        assertThat(packets).hasSizeBetween(34, 40);
+        transport.close();
+    }
+
+    @Test
+    public void testOneSeriesPerPacketWithoutBatching() throws Exception {
+        BatchingUdpTransport transport = new BatchingUdpTransport("127.0.0.1", agent.getLocalPort(),
+                Collections.emptyList(), 0, false, AsyncSender.DEFAULT_CAPACITY, OverflowPolicy.DROP_OLDEST);
+        transport.begin(1000L);
+        transport.count("jenkins.runs.count", 5);
+        transport.gauge("jenkins.queue.size", 2);
+        transport.end();
+
+        assertThat(receive(BatchingUdpTransport.LOOPBACK_MAX_PACKET_SIZE))
+                .containsExactly("jenkins.runs.count:5|c", "jenkins.queue.size:2|g");
+        transport.close();
+    }
+
+    private List<String> receive(int maxPacketSize) throws Exception {
+        List<String> packets = new ArrayList<>();
+        byte[] data = new byte[maxPacketSize + 1];
+        while (true) {
+            DatagramPacket packet = new DatagramPacket(data, data.length);
+            try {
+                agent.receive(packet);
+            } catch (SocketTimeoutException e) {
+                return packets;
+            }
+            packets.add(new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8));
+        }
+    }
+}
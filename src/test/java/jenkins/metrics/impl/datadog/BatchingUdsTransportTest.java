@@ -0,0 +1,85 @@
+package jenkins.metrics.impl.datadog;
+
+import hudson.Functions;
+import jnr.unixsocket.UnixDatagramChannel;
+import jnr.unixsocket.UnixSocketAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeFalse;
+
+public class BatchingUdsTransportTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File socket;
+    private UnixDatagramChannel agent;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeFalse("Unix domain datagram sockets are not available on Windows", Functions.isWindows());
+        socket = new File(tmp.getRoot(), "dsd.socket");
+        agent = UnixDatagramChannel.open();
+        agent.bind(new UnixSocketAddress(socket));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (agent != null) agent.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testLargeDatagrams() throws Exception {
+        BatchingUdsTransport transport = new BatchingUdsTransport(socket.getPath(),
+                Collections.singletonList("env:test"), 0, 0);
+        transport.begin(1000L);
+        for (int i = 0; i < 1000; i++) {
+            transport.gauge("jenkins.node.agent" + i + ".executors", i);
+        }
+        transport.end();
+
+        List<String> packets = new ArrayList<>();
+        List<String> lines = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(BatchingUdsTransport.MAX_PACKET_SIZE);
+        while (lines.size() < 1000) {
+            agent.receive(buffer);
+            buffer.flip();
+            assertThat(buffer.remaining()).isLessThanOrEqualTo(BatchingUdsTransport.DEFAULT_MAX_PACKET_SIZE);
+            String packet = StandardCharsets.UTF_8.decode(buffer).toString();
+            packets.add(packet);
+            lines.addAll(Arrays.asList(packet.split("\n")));
+            buffer.clear();
+        }
+        assertThat(lines).hasSize(1000).contains("jenkins.node.agent42.executors:42|g|#env:test");
+        // around 50 bytes per line, so more than 150 series per datagram
+        assertThat(packets).hasSizeLessThan(10);
+        transport.close();
+        assertThat(transport.getSender().getDropped()).isZero();
+    }
+
+    @Test
+    public void testAgentIsGone() throws Exception {
+        BatchingUdsTransport transport = new BatchingUdsTransport(new File(tmp.getRoot(), "missing.socket").getPath(),
+                Collections.emptyList(), 0, 0);
+        transport.begin(1000L);
+        transport.gauge("jenkins.executor.count", 1);
+        // counted as a send error by the sender thread, never failing the report
+        transport.end();
+        transport.close();
+        assertThat(transport.getSender().getErrors()).isEqualTo(1);
+        assertThat(transport.getSender().getSent()).isZero();
+    }
+}
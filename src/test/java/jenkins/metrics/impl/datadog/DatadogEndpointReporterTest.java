@@ -0,0 +1,329 @@
+package jenkins.metrics.impl.datadog;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.DatadogUdpEndpoint;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.ExpansionOverride;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.PrefixFilter;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.Tag;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DatadogEndpointReporterTest {
+
+    /**
+     * Leaves out the metrics reporters register about themselves once started.
+     */
+    static final MetricFilter NOT_SELF =
+            (name, metric) -> !name.startsWith(DatadogReportersRegistry.METRICS_PREFIX + ".");
+
+    private static final AtomicInteger REPORTERS = new AtomicInteger();
+
+    @Test
+    public void testSnapshotIsSharedBetweenEndpoints() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        AtomicInteger evaluations = new AtomicInteger();
+        registry.register("jenkins.queue.size", (Gauge<Integer>) evaluations::incrementAndGet);
+        registry.counter("jenkins.job.count").inc(3);
+        registry.histogram("vm.histogram").update(5);
+
+        RecordingTransport all = new RecordingTransport();
+        RecordingTransport jenkins = new RecordingTransport();
+        DatadogEndpointReporter allReporter = reporter(registry, NOT_SELF, all);
+        DatadogEndpointReporter jenkinsReporter = reporter(registry,
+                new SimpleMetricFilter(Collections.singletonList(new PrefixFilter("jenkins"))), jenkins);
+
+        MetricsSnapshot snapshot = new MetricsSnapshot(1000L);
+        allReporter.report(snapshot);
+        jenkinsReporter.report(snapshot);
+
+        // the gauge is read once for both endpoints
+        assertThat(evaluations.get()).isEqualTo(1);
+        assertThat(all.series)
+                .containsExactlyInAnyOrder("jenkins.queue.size:1|g", "jenkins.job.count:3|g", "vm.histogram.count:1|c");
+        assertThat(jenkins.series)
+                .containsExactlyInAnyOrder("jenkins.queue.size:1|g", "jenkins.job.count:3|g");
+        assertThat(all.ends).isEqualTo(1);
+
+        allReporter.report(new MetricsSnapshot(1060L));
+        assertThat(evaluations.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void testCountsAreSentAsDeltas() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.meter("jenkins.runs").mark(5);
+
+        RecordingTransport transport = new RecordingTransport();
+        DatadogEndpointReporter reporter = reporter(registry, NOT_SELF, transport);
+        reporter.report(new MetricsSnapshot(1000L));
+        registry.meter("jenkins.runs").mark(7);
+        reporter.report(new MetricsSnapshot(1060L));
+        reporter.report(new MetricsSnapshot(1120L));
+
+        assertThat(transport.series).containsExactly("jenkins.runs.count:5|c", "jenkins.runs.count:7|c",
+                "jenkins.runs.count:0|c");
+    }
+
+    @Test
+    public void testExpansionOverrides() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.timer("http.requests").update(10, TimeUnit.MILLISECONDS);
+        registry.timer("jenkins.job.building.duration").update(20, TimeUnit.MILLISECONDS);
+        registry.histogram("jenkins.job.building.count").update(1);
+        registry.histogram("jenkins.job.queue.wait").update(2);
+        registry.histogram("vm.gc.pause").update(3);
+
+        DatadogUdpEndpoint endpoint = new DatadogUdpEndpoint(null, null, "localhost", 8125);
+        endpoint.setExpansions("count, p99");
+        endpoint.setExpansionOverrides(Arrays.asList(new ExpansionOverride("http.", "1MinuteRate, median"),
+                new ExpansionOverride("jenkins.job", "count"),
+                new ExpansionOverride("jenkins.job.building.", "")));
+        RecordingTransport transport = new RecordingTransport();
+        DatadogEndpointReporter reporter = reporter(registry, endpoint, transport);
+        reporter.report(new MetricsSnapshot(1000L));
+
+        assertThat(transport.series).extracting(s -> s.substring(0, s.indexOf(':'))).containsExactlyInAnyOrder(
+                "http.requests.1MinuteRate", "http.requests.median",
+                "jenkins.job.queue.wait.count",
+                "vm.gc.pause.count", "vm.gc.pause.p99");
+    }
+
+    @Test
+    public void testReconfigureKeepsCountsAndSwapsSettings() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.meter("jenkins.runs").mark(5);
+        registry.counter("vm.count").inc();
+
+        RecordingTransport transport = new RecordingTransport();
+        DatadogEndpointReporter reporter = reporter(registry, NOT_SELF, transport);
+        reporter.report(new MetricsSnapshot(1000L));
+        assertThat(transport.tags).containsExactly("env:test");
+
+        DatadogUdpEndpoint endpoint = new DatadogUdpEndpoint(null, Arrays.asList(new Tag("env", "prod")), "localhost", 8125);
+        endpoint.setExpansions("count, 1MinuteRate");
+        FilteredMetricRegistry jenkins = new FilteredMetricRegistry(registry,
+                new SimpleMetricFilter(Collections.singletonList(new PrefixFilter("jenkins"))));
+        reporter.reconfigure(endpoint, jenkins, transport, endpoint.getExpansionSelector());
+        registry.meter("jenkins.runs").mark(2);
+        transport.series.clear();
+        reporter.report(new MetricsSnapshot(1060L));
+
+        assertThat(transport.tags).containsExactly("env:prod");
+        assertThat(reporter.getMetrics()).isSameAs(jenkins);
+        // the count sent last is kept across the reconfiguration
+        assertThat(transport.series).extracting(s -> s.substring(0, s.indexOf('|')))
+                .contains("jenkins.runs.count:2")
+                .anyMatch(s -> s.startsWith("jenkins.runs.1MinuteRate:"))
+                .noneMatch(s -> s.startsWith("vm.count"));
+    }
+
+    @Test
+    public void testReconfigureClosesReplacedTransport() {
+        MetricRegistry registry = new MetricRegistry();
+        RecordingTransport first = new RecordingTransport();
+        DatadogEndpointReporter reporter = reporter(registry, NOT_SELF, first);
+        RecordingTransport second = new RecordingTransport();
+        reporter.reconfigure(reporter.getEndpoint(), reporter.getMetrics(), second,
+                reporter.getEndpoint().getExpansionSelector());
+
+        assertThat(first.closed).isTrue();
+        assertThat(second.closed).isFalse();
+        assertThat(reporter.getTransport()).isSameAs(second);
+    }
+
+    @Test
+    public void testReportStats() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.register("jenkins.queue.size", (Gauge<Integer>) () -> 1);
+        registry.meter("jenkins.runs");
+        registry.counter("vm.count");
+
+        RecordingTransport transport = new RecordingTransport();
+        DatadogUdpEndpoint endpoint = new DatadogUdpEndpoint(
+                Arrays.asList(new PrefixFilter("jenkins.queue"), new PrefixFilter("jenkins.runs")), null, "localhost", 8125);
+        endpoint.setSkipUnchanged(true);
+        DatadogEndpointReporter reporter = reporter(registry, endpoint,
+                new SimpleMetricFilter(endpoint.getPrefixFilters()), transport);
+        reporter.report(new MetricsSnapshot(1000L));
+        reporter.report(new MetricsSnapshot(1060L));
+
+        ReportStats stats = reporter.getStats();
+        assertThat(stats.getTimestamp()).isEqualTo(1060L);
+        assertThat(stats.getMetricCount()).isEqualTo(2);
+        // vm.count, and the metrics of the reporter itself
+        assertThat(stats.getFilteredCount()).isEqualTo(1 + stats.getMetrics().size());
+        assertThat(stats.getSeriesCount()).isEqualTo(0);
+        assertThat(stats.getSkippedCount()).isEqualTo(2);
+        assertThat(stats.getDurationNanos()).isGreaterThanOrEqualTo(stats.getEvaluationNanos());
+        assertThat(stats.getSlowestMetric()).startsWith("jenkins.");
+        assertThat(registry.getTimers()).containsKey(reporter.getMetricsPrefix() + ".report.duration");
+
+        reporter.stop();
+        assertThat(registry.getTimers()).doesNotContainKey(reporter.getMetricsPrefix() + ".report.duration");
+    }
+
+    @Test
+    public void testAggregationRules() {
+        MetricRegistry registry = new MetricRegistry();
+        for (int i = 0; i < 100; i++) {
+            registry.timer("jenkins.job.job" + i + ".duration").update(i, TimeUnit.MILLISECONDS);
+        }
+        registry.register("jenkins.node.linux.executors", (Gauge<Integer>) () -> 4);
+        registry.timer("jenkins.job.scheduled").update(1, TimeUnit.MILLISECONDS);
+
+        DatadogUdpEndpoint endpoint = new DatadogUdpEndpoint(null, null, "localhost", 8125);
+        endpoint.setExpansions("count, p95, p99, max");
+        MetricsDatadogConfig.AggregationRule jobs = new MetricsDatadogConfig.AggregationRule("jenkins.job.*.duration");
+        jobs.setStatistic("max");
+        MetricsDatadogConfig.AggregationRule nodes = new MetricsDatadogConfig.AggregationRule("jenkins.node.*.executors");
+        nodes.setType(AggregationType.HISTOGRAM);
+        endpoint.setAggregationRules(Arrays.asList(jobs, nodes));
+        RecordingTransport transport = new RecordingTransport();
+        DatadogEndpointReporter reporter = reporter(registry, endpoint, transport);
+        reporter.report(new MetricsSnapshot(1000L));
+
+        // one value per job instead of 4 expansions per job
+        assertThat(transport.series).filteredOn(s -> s.startsWith("jenkins.job.duration:")).hasSize(100)
+                .contains("jenkins.job.duration:42.0|d|#job:job42");
+        assertThat(transport.series).contains("jenkins.node.executors:4.0|h|#node:linux");
+        assertThat(transport.series).filteredOn(s -> s.startsWith("jenkins.job.scheduled.")).hasSize(4);
+        assertThat(transport.series).hasSize(100 + 1 + 4);
+    }
+
+    @Test
+    public void testAggregatedCountIsTheIncrease() {
+        MetricRegistry registry = new MetricRegistry();
+        Meter build = registry.meter("jenkins.job.build.started");
+        build.mark(3);
+
+        DatadogUdpEndpoint endpoint = new DatadogUdpEndpoint(null, null, "localhost", 8125);
+        MetricsDatadogConfig.AggregationRule jobs = new MetricsDatadogConfig.AggregationRule("jenkins.job.*.started");
+        jobs.setStatistic("count");
+        endpoint.setAggregationRules(Collections.singletonList(jobs));
+        RecordingTransport transport = new RecordingTransport();
+        DatadogEndpointReporter reporter = reporter(registry, endpoint, transport);
+        reporter.report(new MetricsSnapshot(1000L));
+        build.mark(2);
+        reporter.report(new MetricsSnapshot(2000L));
+
+        assertThat(transport.series).containsExactly("jenkins.job.started:3.0|d|#job:build",
+                "jenkins.job.started:2.0|d|#job:build");
+    }
+
+    @Test
+    public void testExtractionRules() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.timer("jenkins.job.team.build.duration").update(5, TimeUnit.MILLISECONDS);
+        registry.timer("jenkins.job.team.deploy.duration").update(7, TimeUnit.MILLISECONDS);
+        registry.register("jenkins.node.linux.executors", (Gauge<Integer>) () -> 4);
+        registry.counter("jenkins.node.windows.executors").inc(2);
+        registry.register("jenkins.queue.size", (Gauge<Integer>) () -> 1);
+
+        DatadogUdpEndpoint endpoint = new DatadogUdpEndpoint(null, null, "localhost", 8125);
+        endpoint.setExpansions("count, max");
+        endpoint.setSkipUnchanged(true);
+        endpoint.setExtractionRules(Arrays.asList(
+                new MetricsDatadogConfig.ExtractionRule("jenkins\\.job\\.(.+)\\.([^.]+)\\.duration",
+                        "jenkins.job.duration", "folder:$1,job:$2"),
+                new MetricsDatadogConfig.ExtractionRule("jenkins\\.node\\.([^.]+)\\.(.+)", "jenkins.node.$2",
+                        "node:$1")));
+        RecordingTransport transport = new RecordingTransport();
+        DatadogEndpointReporter reporter = reporter(registry, endpoint, transport);
+        reporter.report(new MetricsSnapshot(1000L));
+
+        assertThat(transport.series).containsExactlyInAnyOrder(
+                "jenkins.job.duration.count:1|c|#folder:team,job:build",
+                "jenkins.job.duration.max:5.0|g|#folder:team,job:build",
+                "jenkins.job.duration.count:1|c|#folder:team,job:deploy",
+                "jenkins.job.duration.max:7.0|g|#folder:team,job:deploy",
+                "jenkins.node.executors:4|g|#node:linux",
+                "jenkins.node.executors:2|g|#node:windows",
+                "jenkins.queue.size:1|g");
+
+        // series sharing a name once extracted are still told apart when skipping unchanged values
+        registry.counter("jenkins.node.windows.executors").inc();
+        transport.series.clear();
+        reporter.report(new MetricsSnapshot(1060L));
+        assertThat(transport.series).containsExactly("jenkins.node.executors:3|g|#node:windows");
+    }
+
+    private static DatadogEndpointReporter reporter(MetricRegistry registry, MetricFilter filter, SeriesTransport transport) {
+        DatadogUdpEndpoint endpoint = new DatadogUdpEndpoint(null, Arrays.asList(new Tag("env", "test")), "localhost", 8125);
+        endpoint.setExpansions("count");
+        return reporter(registry, endpoint, filter, transport);
+    }
+
+    /**
+     * @return a started reporter of all the metrics of {@code registry}, with the expansions of the endpoint
+     */
+    static DatadogEndpointReporter reporter(MetricRegistry registry, DatadogUdpEndpoint endpoint, SeriesTransport transport) {
+        return reporter(registry, endpoint, NOT_SELF, transport);
+    }
+
+    private static DatadogEndpointReporter reporter(MetricRegistry registry, DatadogUdpEndpoint endpoint, MetricFilter filter,
+                                                    SeriesTransport transport) {
+        DatadogEndpointReporter reporter = new DatadogEndpointReporter(endpoint,
+                new FilteredMetricRegistry(registry,
+                        (name, metric) -> NOT_SELF.matches(name, metric) && filter.matches(name, metric)),
+                transport, endpoint.getExpansionSelector(), "jenkins.datadog.test" + REPORTERS.incrementAndGet());
+        reporter.start();
+        return reporter;
+    }
+
+    static class RecordingTransport implements SeriesTransport {
+        final List<String> series = new ArrayList<>();
+        List<String> tags;
+        int ends;
+        boolean closed;
+
+        @Override
+        public void setTags(List<String> tags) {
+            this.tags = tags;
+        }
+
+        @Override
+        public void begin(long timestamp) {
+        }
+
+        @Override
+        public void gauge(String name, String tags, long value) {
+            series.add(name + ":" + value + "|g" + (tags != null ? "|#" + tags : ""));
+        }
+
+        @Override
+        public void gauge(String name, String tags, double value) {
+            series.add(name + ":" + value + "|g" + (tags != null ? "|#" + tags : ""));
+        }
+
+        @Override
+        public void count(String name, String tags, long delta) {
+            series.add(name + ":" + delta + "|c" + (tags != null ? "|#" + tags : ""));
+        }
+
+        @Override
+        public void sample(String name, double value, AggregationType type, String tag) {
+            series.add(name + ":" + value + "|" + type.getSymbol() + "|#" + tag);
+        }
+
+        @Override
+        public void end() {
+            ends++;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -1,17 +1,31 @@
 package jenkins.metrics.impl.datadog;
 
+import hudson.ExtensionList;
+import jenkins.metrics.api.Metrics;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.DataDogEndpoint;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.DatadogHttpEndpoint;
 import jenkins.metrics.impl.datadog.MetricsDatadogConfig.DatadogUdpEndpoint;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.PrefixFilter;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.RateClass;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.Tag;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.RestartableJenkinsRule;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class DatadogReporterRegistryTest {
 
+    private static final Logger LOGGER = Logger.getLogger(DatadogReporterRegistryTest.class.getName());
+
     @Rule
     public RestartableJenkinsRule rr = new RestartableJenkinsRule();
 
@@ -41,4 +55,172 @@ public class DatadogReporterRegistryTest {
         });
     }
 
+    @Test
+    public void testReconfigureKeepsReporterAndTransport() throws Exception {
+        rr.then(r -> {
+            DatadogReportersRegistry registry = MetricsDatadogConfig.instanceOrDie().getRegistry();
+            registry.updateReporters(Collections.singletonList(new DatadogUdpEndpoint(null, null, "localhost", 8125)));
+            DatadogEndpointReporter reporter = registry.getReporters().get("udp:localhost:8125");
+            SeriesTransport transport = reporter.getTransport();
+
+            DatadogUdpEndpoint retagged = new DatadogUdpEndpoint(Collections.singletonList(new PrefixFilter("jenkins")),
+                    Collections.singletonList(new Tag("env", "test")), "localhost", 8125);
+            retagged.setReportInterval(30);
+            registry.updateReporters(Collections.singletonList(retagged));
+            assertThat(registry.getReporters()).containsOnlyKeys("udp:localhost:8125");
+            assertThat(registry.getReporters().get("udp:localhost:8125")).isSameAs(reporter);
+            assertThat(reporter.getTransport()).isSameAs(transport);
+            assertThat(reporter.getEndpoint()).isEqualTo(retagged);
+
+            DatadogUdpEndpoint smallerPackets = new DatadogUdpEndpoint(null, null, "localhost", 8125);
+            smallerPackets.setMaxPacketSize(512);
+            registry.updateReporters(Collections.singletonList(smallerPackets));
+            assertThat(registry.getReporters().get("udp:localhost:8125")).isSameAs(reporter);
+            assertThat(reporter.getTransport()).isNotSameAs(transport);
+
+            registry.updateReporters(Collections.singletonList(new DatadogUdpEndpoint(null, null, "localhost", 18125)));
+            assertThat(registry.getReporters()).containsOnlyKeys("udp:localhost:18125");
+        });
+    }
+
+    @Test
+    public void testSeriesBudgetRaisesMonitor() throws Exception {
+        rr.then(r -> {
+            SeriesBudgetMonitor monitor = ExtensionList.lookupSingleton(SeriesBudgetMonitor.class);
+            assertThat(monitor.isActivated()).isFalse();
+
+            DatadogUdpEndpoint endpoint = new DatadogUdpEndpoint(
+                    Collections.singletonList(new PrefixFilter("test.budget")), null, "localhost", 8125);
+            endpoint.setSeriesBudget(5);
+            DatadogReportersRegistry registry = MetricsDatadogConfig.instanceOrDie().getRegistry();
+            registry.updateReporters(Collections.singletonList(endpoint));
+            for (int i = 0; i < 8; i++) {
+                Metrics.metricRegistry().counter("test.budget.agent" + i + ".executors");
+            }
+
+            assertThat(registry.getReporters().get("udp:localhost:8125").getMetrics().getNames()).hasSize(5);
+            assertThat(monitor.isActivated()).isTrue();
+            assertThat(monitor.getEndpoints()).extracting(EndpointStatus::getTarget).containsExactly("udp:localhost:8125");
+            assertThat(monitor.getEndpoints().get(0).getRejected()).isEqualTo(3);
+            assertThat(Metrics.metricRegistry().getGauges())
+                    .containsKey("jenkins.datadog.udp_localhost_8125.series.rejected");
+
+            // a removed metric lets one of those left out in
+            Metrics.metricRegistry().remove("test.budget.agent0.executors");
+            assertThat(registry.getReporters().get("udp:localhost:8125").getMetrics().getNames()).hasSize(5)
+                    .contains("test.budget.agent5.executors");
+            assertThat(monitor.getEndpoints().get(0).getRejected()).isEqualTo(2);
+
+            // a larger budget gets a new filtered registry, which admits every metric
+            DatadogUdpEndpoint larger = new DatadogUdpEndpoint(
+                    Collections.singletonList(new PrefixFilter("test.budget")), null, "localhost", 8125);
+            larger.setSeriesBudget(10);
+            registry.updateReporters(Collections.singletonList(larger));
+            assertThat(registry.getReporters().get("udp:localhost:8125").getMetrics().getNames()).hasSize(7);
+            assertThat(monitor.isActivated()).isFalse();
+        });
+    }
+
+    @Test
+    public void testSpillFileIsDeletedWithItsEndpoint() throws Exception {
+        rr.then(r -> {
+            DatadogHttpEndpoint endpoint = new DatadogHttpEndpoint(null, null, "http://localhost:1/api/v1/series");
+            endpoint.setSpillSize(1);
+            DatadogReportersRegistry registry = MetricsDatadogConfig.instanceOrDie().getRegistry();
+            registry.updateReporters(Collections.singletonList(endpoint));
+            File spill = DatadogReportersRegistry.spillFile("http:http://localhost:1/api/v1/series");
+            spill.getParentFile().mkdirs();
+            assertThat(spill.createNewFile()).isTrue();
+
+            registry.updateReporters(Collections.emptyList());
+            assertThat(spill).doesNotExist();
+        });
+    }
+
+    @Test
+    public void testRateClassesAreReportedInTheirOwnLane() throws Exception {
+        rr.then(r -> {
+            DatadogUdpEndpoint endpoint = new DatadogUdpEndpoint(
+                    Collections.singletonList(new PrefixFilter("test.rate")), null, "localhost", 8125);
+            endpoint.setSeriesBudget(4);
+            endpoint.setRateClasses(Arrays.asList(new RateClass("test.rate.queue", 1),
+                    new RateClass("test.rate.queue.buildable, test.rate.executors", 5)));
+            DatadogReportersRegistry registry = MetricsDatadogConfig.instanceOrDie().getRegistry();
+            registry.updateReporters(Collections.singletonList(endpoint));
+            for (String name : Arrays.asList("queue.buildable", "queue.blocked", "executors.busy", "jobs.a", "jobs.b")) {
+                Metrics.metricRegistry().counter("test.rate." + name);
+            }
+
+            DatadogEndpointReporter reporter = registry.getReporters().get("udp:localhost:8125");
+            List<DatadogEndpointReporter> rates = registry.getRateReporters().get("udp:localhost:8125");
+            assertThat(rates).hasSize(2);
+            // metrics of the classes are counted against the series budget of the endpoint
+            CardinalityGuard guard = reporter.getMetrics().getGuard();
+            assertThat(rates).extracting(rate -> rate.getMetrics().getGuard()).containsOnly(guard);
+            assertThat(reporter.getMetrics().getNames()).containsOnly("test.rate.jobs.a");
+            assertThat(guard.getAdmitted()).isEqualTo(4);
+            assertThat(guard.getRejected()).isEqualTo(1);
+            assertThat(guard.getLastRejected()).isEqualTo("test.rate.jobs.b");
+            assertThat(Metrics.metricRegistry().getGauges()).containsKey("jenkins.datadog.udp_localhost_8125.series.rejected")
+                    .doesNotContainKey("jenkins.datadog.udp_localhost_8125.class0.series.rejected");
+            assertThat(rates.get(0).getMetrics().getNames())
+                    .containsOnly("test.rate.queue.buildable", "test.rate.queue.blocked");
+            assertThat(rates.get(1).getMetrics().getNames()).containsOnly("test.rate.executors.busy");
+            assertThat(rates.get(0).getSchedule().getInterval()).isEqualTo(1);
+            assertThat(reporter.getSchedule().getInterval()).isEqualTo(DataDogEndpoint.DEFAULT_REPORT_INTERVAL);
+            assertThat(((SharedTransport) rates.get(0).getTransport()).getTransport()).isSameAs(reporter.getTransport());
+            assertThat(registry.getStatus()).extracting(EndpointStatus::getTarget)
+                    .containsExactly("udp:localhost:8125", "udp:localhost:8125 (1s)", "udp:localhost:8125 (5s)");
+
+            // other changes keep the reporters of the classes
+            DatadogUdpEndpoint retagged = new DatadogUdpEndpoint(
+                    Collections.singletonList(new PrefixFilter("test.rate")),
+                    Collections.singletonList(new Tag("env", "test")), "localhost", 8125);
+            retagged.setSeriesBudget(4);
+            retagged.setRateClasses(endpoint.getRateClasses());
+            registry.updateReporters(Collections.singletonList(retagged));
+            assertThat(registry.getRateReporters().get("udp:localhost:8125")).containsExactlyElementsOf(rates);
+            assertThat(rates.get(0).getEndpoint()).isEqualTo(retagged);
+
+            registry.updateReporters(Collections.singletonList(new DatadogUdpEndpoint(null, null, "localhost", 8125)));
+            assertThat(registry.getRateReporters()).isEmpty();
+        });
+    }
+
+    @Test
+    public void testReportersStartAfterPluginLoad() throws Exception {
+        int endpoints = 20;
+        rr.then(r -> {
+            List<MetricsDatadogConfig.DataDogEndpoint> list = new ArrayList<>();
+            for (int i = 0; i < endpoints; i++) {
+                list.add(new DatadogUdpEndpoint(null, null, "dogstatsd-" + i + ".invalid", 8125));
+            }
+            MetricsDatadogConfig config = MetricsDatadogConfig.instanceOrDie();
+            config.setEndpointsList(list);
+            config.save();
+        });
+        rr.then(r -> {
+            // reporters of the saved endpoints are started in the background once jobs are loaded
+            MetricsDatadogConfig config = MetricsDatadogConfig.instanceOrDie();
+            config.getStarted().get(30, TimeUnit.SECONDS);
+            assertThat(config.getRegistry().getReporters()).hasSize(endpoints);
+
+            // loading the extension does not start any reporter, which is what used to delay the startup
+            long start = System.nanoTime();
+            MetricsDatadogConfig loaded = new MetricsDatadogConfig();
+            long loadNanos = System.nanoTime() - start;
+            assertThat(loaded.getEndpointsList()).hasSize(endpoints);
+            assertThat(loaded.getStarted()).isNull();
+            assertThat(loaded.getRegistry().getReporters()).isEmpty();
+
+            start = System.nanoTime();
+            loaded.getRegistry().updateReporters(loaded.getEndpointsList().toList());
+            long startNanos = System.nanoTime() - start;
+            assertThat(loaded.getRegistry().getReporters()).hasSize(endpoints);
+            LOGGER.info(String.format("%d endpoints: loaded in %d ms, reporters started in %d ms", endpoints,
+                    TimeUnit.NANOSECONDS.toMillis(loadNanos), TimeUnit.NANOSECONDS.toMillis(startNanos)));
+            loaded.getRegistry().updateReporters(Collections.emptyList());
+        });
+    }
+
 }
@@ -0,0 +1,84 @@
+package jenkins.metrics.impl.datadog;
+
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.DatadogUdpEndpoint;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.Tag;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of one series into a packet buffer, compared with building coursera series then formatting them as
+ * strings. Run with the GC profiler, {@code gc.alloc.rate.norm} gives the bytes allocated per series.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DogStatsdEncoderBenchmark {
+
+    private static final int SERIES = 1000;
+
+    private final String[] names = new String[SERIES];
+    private final double[] values = new double[SERIES];
+    private DatadogUdpEndpoint endpoint;
+    private DogStatsdEncoder encoder;
+    private ByteBuffer packet;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < SERIES; i++) {
+            names[i] = "jenkins.job.folder" + (i % 20) + ".job" + i + ".duration.p99";
+            values[i] = i * 1.37;
+        }
+        endpoint = new DatadogUdpEndpoint(null, Arrays.asList(new Tag("env", "prod"), new Tag("team", "ci"),
+                new Tag("site", "eu-west-1")), "localhost", 8125);
+        encoder = new DogStatsdEncoder(endpoint.getMergedTags(), BatchingUdpTransport.LOOPBACK_MAX_PACKET_SIZE);
+        packet = ByteBuffer.allocateDirect(BatchingUdpTransport.LOOPBACK_MAX_PACKET_SIZE);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SERIES)
+    public int encoder() {
+        packet.clear();
+        for (int i = 0; i < SERIES; i++) {
+            ByteBuffer line = encoder.gauge(names[i], values[i]);
+            if (line.remaining() > packet.remaining()) packet.clear();
+            packet.put(line);
+        }
+        return packet.position();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SERIES)
+    public int courseraSeries() {
+        packet.clear();
+        for (int i = 0; i < SERIES; i++) {
+            DatadogGauge gauge = new DatadogGauge(names[i], values[i], 1000L, null, endpoint.getMergedTags());
+            byte[] line = format(gauge);
+            if (line.length > packet.remaining()) packet.clear();
+            packet.put(line);
+        }
+        return packet.position();
+    }
+
+    private static byte[] format(DatadogGauge gauge) {
+        StringBuilder line = new StringBuilder(gauge.getMetric()).append(':')
+                .append(gauge.getPoints().get(0).get(1).doubleValue()).append("|g");
+        List<String> tags = gauge.getTags();
+        if (!tags.isEmpty()) {
+            line.append("|#").append(String.join(",", tags));
+        }
+        return line.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
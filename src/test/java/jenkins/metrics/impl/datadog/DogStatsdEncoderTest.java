@@ -0,0 +1,89 @@
+package jenkins.metrics.impl.datadog;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DogStatsdEncoderTest {
+
+    private final DogStatsdEncoder encoder = new DogStatsdEncoder(Arrays.asList("env:test", "team:ci"), 100);
+
+    @Test
+    public void testLines() {
+        assertThat(decode(encoder.gauge("jenkins.queue.size", 42L))).isEqualTo("jenkins.queue.size:42|g|#env:test,team:ci");
+        assertThat(decode(encoder.count("jenkins.runs.count", -3L))).isEqualTo("jenkins.runs.count:-3|c|#env:test,team:ci");
+        assertThat(decode(new DogStatsdEncoder(Collections.emptyList(), 100).gauge("jenkins.queue.size", 0L)))
+                .isEqualTo("jenkins.queue.size:0|g");
+    }
+
+    @Test
+    public void testSeriesTags() {
+        assertThat(decode(encoder.gauge("jenkins.job.duration", "job:build", 3L)))
+                .isEqualTo("jenkins.job.duration:3|g|#job:build,env:test,team:ci");
+        assertThat(decode(new DogStatsdEncoder(Collections.emptyList(), 100).count("jenkins.job.runs", "job:build", 1L)))
+                .isEqualTo("jenkins.job.runs:1|c|#job:build");
+    }
+
+    @Test
+    public void testSamples() {
+        assertThat(decode(encoder.sample("jenkins.job.duration", 1.5, AggregationType.DISTRIBUTION, "job:build")))
+                .isEqualTo("jenkins.job.duration:1.5|d|#job:build,env:test,team:ci");
+        assertThat(decode(new DogStatsdEncoder(Collections.emptyList(), 100)
+                .sample("jenkins.job.duration", 2, AggregationType.HISTOGRAM, "job:build")))
+                .isEqualTo("jenkins.job.duration:2|h|#job:build");
+    }
+
+    @Test
+    public void testLongs() {
+        assertThat(value(0L)).isEqualTo("0");
+        assertThat(value(-1L)).isEqualTo("-1");
+        assertThat(value(Long.MAX_VALUE)).isEqualTo("9223372036854775807");
+        assertThat(value(Long.MIN_VALUE)).isEqualTo("-9223372036854775808");
+    }
+
+    @Test
+    public void testDoubles() {
+        assertThat(value(0.0)).isEqualTo("0");
+        assertThat(value(-3.0)).isEqualTo("-3");
+        assertThat(value(1.5)).isEqualTo("1.5");
+        assertThat(value(-1.5)).isEqualTo("-1.5");
+        assertThat(value(0.1)).isEqualTo("0.1");
+        assertThat(value(123.456)).isEqualTo("123.456");
+        assertThat(value(12345678.9)).isEqualTo("12345678.9");
+        assertThat(value(0.0123456789012345678)).isEqualTo("0.0123456789012346");
+        assertThat(value(-0.00123)).isEqualTo("-0.00123");
+        // too small for the leading zeros and 15 digits to fit in a long
+        assertThat(value(1e-10)).isEqualTo("1.0E-10");
+        assertThat(value(0.000000000000001234)).isEqualTo("1.234E-15");
+        assertThat(value(2.0 / 3)).isEqualTo("0.666666666666667");
+        assertThat(value(1e15)).isEqualTo("1000000000000000");
+        // rounded to 15 significant digits
+        assertThat(value(0.1 + 0.2)).isEqualTo("0.3");
+        assertThat(value(99.99999999999999)).isEqualTo("100");
+        assertThat(value(0.09999999999999999)).isEqualTo("0.1");
+    }
+
+    @Test
+    public void testSkippedLines() {
+        assertThat(encoder.gauge("jenkins.load", Double.NaN)).isNull();
+        assertThat(encoder.gauge("jenkins.load", Double.POSITIVE_INFINITY)).isNull();
+        assertThat(new DogStatsdEncoder(Collections.emptyList(), 10).gauge("jenkins.queue.size", 1L)).isNull();
+    }
+
+    private String value(long value) {
+        return decode(new DogStatsdEncoder(Collections.emptyList(), 100).gauge("m", value)).replace("m:", "").replace("|g", "");
+    }
+
+    private String value(double value) {
+        return decode(new DogStatsdEncoder(Collections.emptyList(), 100).gauge("m", value)).replace("m:", "").replace("|g", "");
+    }
+
+    private static String decode(ByteBuffer line) {
+        return StandardCharsets.UTF_8.decode(line).toString();
+    }
+}
@@ -0,0 +1,135 @@
+package jenkins.metrics.impl.datadog;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import hudson.util.FormValidation;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.DatadogUdpEndpoint;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.Tag;
+import org.coursera.metrics.datadog.DatadogReporter.Expansion;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ExpansionSelectorTest {
+
+    private static final Logger LOGGER = Logger.getLogger(ExpansionSelectorTest.class.getName());
+
+    @Test
+    public void testParse() {
+        List<String> unknown = new ArrayList<>();
+        assertThat(ExpansionSelector.parse("count, p99,1MinuteRate  MEDIAN,p42", unknown))
+                .containsExactlyInAnyOrder(Expansion.COUNT, Expansion.P99, Expansion.RATE_1_MINUTE, Expansion.MEDIAN);
+        assertThat(unknown).containsExactly("p42");
+        assertThat(ExpansionSelector.parse("", null)).isEmpty();
+        assertThat(MetricsDatadogConfig.checkExpansions("count, p99").kind).isEqualTo(FormValidation.Kind.OK);
+        assertThat(MetricsDatadogConfig.checkExpansions("p42").kind).isEqualTo(FormValidation.Kind.ERROR);
+    }
+
+    /**
+     * Lines and bytes sent on each report for a synthetic registry, to size expansions against agent throughput.
+     */
+    @Test
+    public void testPayloadPerReport() {
+        int gauges = 1000, counters = 500, histograms = 500, timers = 500;
+        MetricRegistry registry = new MetricRegistry();
+        for (int i = 0; i < gauges; i++) {
+            int value = i;
+            registry.register("jenkins.node.agent" + i + ".executors", (Gauge<Integer>) () -> value);
+        }
+        for (int i = 0; i < counters; i++) {
+            registry.counter("jenkins.job.folder.job" + i + ".runs").inc(i);
+        }
+        for (int i = 0; i < histograms; i++) {
+            registry.histogram("jenkins.job.folder.job" + i + ".queue.wait").update(i);
+        }
+        for (int i = 0; i < timers; i++) {
+            registry.timer("jenkins.job.folder.job" + i + ".duration").update(i, TimeUnit.MILLISECONDS);
+        }
+
+        long[] count = payload(registry, "count");
+        long[] percentiles = payload(registry, "count, p95, p99");
+        long[] all = payload(registry, ExpansionSelector.names());
+
+        assertThat(count[0]).isEqualTo(gauges + counters + histograms + timers);
+        assertThat(percentiles[0]).isEqualTo(gauges + counters + 3 * histograms + 3 * timers);
+        // histograms have no rates
+        assertThat(all[0]).isEqualTo(gauges + counters + 11 * histograms + 15 * timers);
+        assertThat(count[1]).isLessThan(percentiles[1]);
+        assertThat(percentiles[1]).isLessThan(all[1]);
+    }
+
+    /**
+     * @return lines and bytes of one report
+     */
+    private static long[] payload(MetricRegistry registry, String expansions) {
+        DatadogUdpEndpoint endpoint = new DatadogUdpEndpoint(null,
+                Arrays.asList(new Tag("env", "prod"), new Tag("team", "ci")), "localhost", 8125);
+        endpoint.setExpansions(expansions);
+        SizingTransport transport = new SizingTransport(endpoint.getMergedTags());
+        DatadogEndpointReporter reporter = DatadogEndpointReporterTest.reporter(registry, endpoint, transport);
+        reporter.report(new MetricsSnapshot(1000L));
+        reporter.stop();
+        LOGGER.info(String.format("%-60s %6d lines %8d bytes", expansions, transport.lines, transport.bytes));
+        return new long[] {transport.lines, transport.bytes};
+    }
+
+    private static class SizingTransport implements SeriesTransport {
+        private final DogStatsdEncoder encoder;
+        long lines;
+        long bytes;
+
+        SizingTransport(List<String> tags) {
+            encoder = new DogStatsdEncoder(tags, BatchingUdpTransport.LOOPBACK_MAX_PACKET_SIZE);
+        }
+
+        private void add(ByteBuffer line) {
+            if (line == null) return;
+            lines++;
+            // with the separating newline
+            bytes += line.remaining() + 1;
+        }
+
+        @Override
+        public void setTags(List<String> tags) {
+        }
+
+        @Override
+        public void begin(long timestamp) {
+        }
+
+        @Override
+        public void gauge(String name, String tags, long value) {
+            add(encoder.gauge(name, tags, value));
+        }
+
+        @Override
+        public void gauge(String name, String tags, double value) {
+            add(encoder.gauge(name, tags, value));
+        }
+
+        @Override
+        public void count(String name, String tags, long delta) {
+            add(encoder.count(name, tags, delta));
+        }
+
+        @Override
+        public void sample(String name, double value, AggregationType type, String tag) {
+            add(encoder.sample(name, value, type, tag));
+        }
+
+        @Override
+        public void end() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
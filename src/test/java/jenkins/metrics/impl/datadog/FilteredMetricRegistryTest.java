@@ -0,0 +1,126 @@
+package jenkins.metrics.impl.datadog;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.PrefixFilter;
+import org.coursera.metrics.datadog.DatadogReporter.Expansion;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FilteredMetricRegistryTest {
+
+    @Test
+    public void testMirrorsMatchingMetrics() throws Exception {
+        MetricRegistry source = new MetricRegistry();
+        source.counter("vm.count");
+        source.counter("jenkins.job.count");
+        source.register("vm.memory.total", (Gauge<Long>) () -> 42L);
+
+        FilteredMetricRegistry filtered = new FilteredMetricRegistry(source,
+                new SimpleMetricFilter(Arrays.asList(new PrefixFilter("vm"))));
+        filtered.attach();
+        // existing metrics are indexed on attach
+        assertThat(filtered.getNames()).containsExactly("vm.count", "vm.memory.total");
+        assertThat(filtered.getGauges()).containsOnlyKeys("vm.memory.total");
+
+        source.timer("vm.gc.time");
+        source.meter("http.requests");
+        source.remove("vm.count");
+        assertThat(filtered.getNames()).containsExactly("vm.gc.time", "vm.memory.total");
+        assertThat(filtered.getTimers().get("vm.gc.time")).isSameAs(source.timer("vm.gc.time"));
+
+        filtered.detach();
+        source.counter("vm.other");
+        assertThat(filtered.getNames()).containsExactly("vm.gc.time", "vm.memory.total");
+    }
+
+    @Test
+    public void testSeriesBudget() {
+        MetricRegistry source = new MetricRegistry();
+        source.counter("vm.count");
+        source.counter("jenkins.node.agent1.executors");
+        source.counter("jenkins.node.agent2.executors");
+
+        CardinalityGuard guard = new CardinalityGuard(4,
+                new ExpansionSelector(EnumSet.of(Expansion.COUNT, Expansion.P95, Expansion.MAX), Collections.emptyList()),
+                AggregationSelector.NONE);
+        FilteredMetricRegistry filtered = new FilteredMetricRegistry(source,
+                new SimpleMetricFilter(Arrays.asList(new PrefixFilter("jenkins"))), guard);
+        filtered.attach();
+        assertThat(filtered.getGuard()).isSameAs(guard);
+
+        // new metrics are left out once their series do not fit in the budget, the admitted ones are kept
+        source.timer("jenkins.job.build.duration");
+        source.counter("jenkins.node.agent3.executors");
+        source.counter("vm.other");
+        assertThat(filtered.getNames()).containsExactly("jenkins.node.agent1.executors",
+                "jenkins.node.agent2.executors", "jenkins.node.agent3.executors");
+        assertThat(guard.getAdmitted()).isEqualTo(3);
+        assertThat(guard.getRejected()).isEqualTo(1);
+        assertThat(guard.getLastRejected()).isEqualTo("jenkins.job.build.duration");
+        source.counter("jenkins.node.agent4.executors");
+        source.counter("jenkins.node.agent5.executors");
+        assertThat(guard.getRejected()).isEqualTo(2);
+
+        // a removed metric frees its place for the metrics left out which fit in it
+        source.remove("jenkins.node.agent1.executors");
+        source.remove("vm.count");
+        assertThat(filtered.getNames()).containsExactly("jenkins.node.agent2.executors",
+                "jenkins.node.agent3.executors", "jenkins.node.agent4.executors", "jenkins.node.agent5.executors");
+        assertThat(guard.getRejected()).isEqualTo(1);
+        source.remove("jenkins.node.agent2.executors");
+        source.remove("jenkins.node.agent3.executors");
+        source.remove("jenkins.node.agent4.executors");
+        assertThat(filtered.getNames()).containsExactly("jenkins.job.build.duration", "jenkins.node.agent5.executors");
+        assertThat(guard.getAdmitted()).isEqualTo(4);
+        assertThat(guard.getRejected()).isZero();
+    }
+
+    @Test
+    public void testSharedSeriesBudget() {
+        MetricRegistry source = new MetricRegistry();
+        CardinalityGuard guard = new CardinalityGuard(2,
+                new ExpansionSelector(EnumSet.of(Expansion.COUNT), Collections.emptyList()), AggregationSelector.NONE);
+        FilteredMetricRegistry queue = new FilteredMetricRegistry(source,
+                new SimpleMetricFilter(Arrays.asList(new PrefixFilter("jenkins.queue"))), guard);
+        FilteredMetricRegistry nodes = new FilteredMetricRegistry(source,
+                new SimpleMetricFilter(Arrays.asList(new PrefixFilter("jenkins.node"))), guard);
+        queue.attach();
+        nodes.attach();
+
+        source.counter("jenkins.queue.size");
+        source.counter("jenkins.node.agent1.executors");
+        source.counter("jenkins.node.agent2.executors");
+        assertThat(queue.getNames()).containsExactly("jenkins.queue.size");
+        assertThat(nodes.getNames()).containsExactly("jenkins.node.agent1.executors");
+        assertThat(guard.getRejected()).isEqualTo(1);
+
+        // room freed in one registry goes to the metrics left out of another
+        source.remove("jenkins.queue.size");
+        assertThat(queue.getNames()).isEmpty();
+        assertThat(nodes.getNames()).containsExactly("jenkins.node.agent1.executors", "jenkins.node.agent2.executors");
+        assertThat(guard.getRejected()).isZero();
+    }
+
+    @Test
+    public void testSeriesOfMetrics() {
+        MetricRegistry registry = new MetricRegistry();
+        AggregationSelector aggregations = new AggregationSelector(
+                Collections.singletonList(new MetricsDatadogConfig.AggregationRule("jenkins.job.*.duration")));
+        CardinalityGuard guard = new CardinalityGuard(100,
+                new ExpansionSelector(EnumSet.of(Expansion.COUNT, Expansion.RATE_1_MINUTE, Expansion.P95),
+                        Collections.emptyList()), aggregations);
+
+        assertThat(guard.series("vm.count", registry.counter("vm.count"))).isEqualTo(1);
+        assertThat(guard.series("vm.memory", (Gauge<Long>) () -> 42L)).isEqualTo(1);
+        assertThat(guard.series("http.requests", registry.meter("http.requests"))).isEqualTo(2);
+        assertThat(guard.series("http.sizes", registry.histogram("http.sizes"))).isEqualTo(2);
+        assertThat(guard.series("http.times", registry.timer("http.times"))).isEqualTo(3);
+        assertThat(guard.series("jenkins.job.a.duration", registry.timer("jenkins.job.a.duration"))).isEqualTo(1);
+    }
+}
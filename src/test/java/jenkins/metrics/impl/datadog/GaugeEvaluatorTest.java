@@ -0,0 +1,157 @@
+package jenkins.metrics.impl.datadog;
+
+import com.codahale.metrics.Gauge;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GaugeEvaluatorTest {
+
+    private final GaugeEvaluator evaluator = new GaugeEvaluator(20, 1);
+
+    @After
+    public void tearDown() {
+        evaluator.stop();
+    }
+
+    @Test
+    public void testSlowGaugeIsRefreshedInBackground() throws Exception {
+        AtomicReference<CountDownLatch> gate = new AtomicReference<>(new CountDownLatch(0));
+        AtomicInteger evaluations = new AtomicInteger();
+        Gauge<Integer> gauge = () -> {
+            try {
+                if (evaluations.get() == 1) Thread.sleep(50);
+                gate.get().await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return evaluations.incrementAndGet();
+        };
+
+        assertThat(evaluator.evaluate("jenkins.disk.usage", gauge)).isEqualTo(1);
+        assertThat(evaluator.evaluate("jenkins.disk.usage", gauge)).isEqualTo(2);
+        assertThat(evaluator.getSlowGauges()).extracting(GaugeEvaluator.SlowGauge::getName)
+                .containsExactly("jenkins.disk.usage");
+
+        // the last known value is returned without waiting for the refresh, which runs once at a time
+        gate.set(new CountDownLatch(1));
+        assertThat(evaluator.evaluate("jenkins.disk.usage", gauge)).isEqualTo(2);
+        assertThat(evaluator.evaluate("jenkins.disk.usage", gauge)).isEqualTo(2);
+        Thread.sleep(50);
+        assertThat(evaluations.get()).isEqualTo(2);
+        gate.get().countDown();
+
+        Object value = null;
+        for (int i = 0; i < 100 && !Integer.valueOf(3).equals(value); i++) {
+            Thread.sleep(10);
+            value = evaluator.evaluate("jenkins.disk.usage", gauge);
+        }
+        assertThat(value).isEqualTo(3);
+
+        // the refresh started by the last call is fast, so the gauge is evaluated inline again
+        for (int i = 0; i < 100 && !evaluator.getSlowGauges().isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertThat(evaluator.getSlowGauges()).isEmpty();
+        assertThat(evaluator.evaluate("jenkins.disk.usage", gauge)).isEqualTo(5);
+    }
+
+    @Test(timeout = 10000)
+    public void testHangingGaugeDoesNotBlockReports() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger evaluations = new AtomicInteger();
+        Gauge<Integer> gauge = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return evaluations.incrementAndGet();
+        };
+
+        // the first evaluation is only waited for up to the budget, and not started again while it runs
+        assertThat(evaluator.evaluate("jenkins.scm.polling", gauge)).isNull();
+        assertThat(evaluator.evaluate("jenkins.scm.polling", gauge)).isNull();
+        assertThat(evaluator.getSlowGauges()).extracting(GaugeEvaluator.SlowGauge::getName)
+                .containsExactly("jenkins.scm.polling");
+        release.countDown();
+
+        Object value = null;
+        for (int i = 0; i < 100 && value == null; i++) {
+            Thread.sleep(10);
+            value = evaluator.evaluate("jenkins.scm.polling", gauge);
+        }
+        assertThat(value).isEqualTo(1);
+    }
+
+    @Test(timeout = 10000)
+    public void testErrorDoesNotStopRefreshes() throws Exception {
+        AtomicInteger evaluations = new AtomicInteger();
+        Gauge<Integer> gauge = () -> {
+            int evaluation = evaluations.incrementAndGet();
+            if (evaluation == 2) throw new NoClassDefFoundError("hudson/plugins/Missing");
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return evaluation;
+        };
+
+        Object value = evaluator.evaluate("jenkins.plugin.gauge", gauge);
+        for (int i = 0; i < 500 && !Integer.valueOf(3).equals(value); i++) {
+            Thread.sleep(10);
+            value = evaluator.evaluate("jenkins.plugin.gauge", gauge);
+        }
+        assertThat(value).isEqualTo(3);
+    }
+
+    @Test(timeout = 10000)
+    public void testHangingFirstEvaluationsAreBounded() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Gauge<Integer> gauge = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return 1;
+        };
+        try {
+            // past the threads and their queue, new gauges are isolated without being waited for
+            for (int i = 0; i < 40; i++) {
+                assertThat(evaluator.evaluate("jenkins.node.agent" + i + ".disk", gauge)).isNull();
+            }
+            assertThat(evaluator.getSlowGauges()).hasSize(40);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testThrowingGaugeHasNoValue() {
+        AtomicInteger evaluations = new AtomicInteger();
+        Gauge<Integer> gauge = () -> {
+            if (evaluations.incrementAndGet() < 3) throw new IllegalStateException("not ready");
+            return evaluations.get();
+        };
+        assertThat(evaluator.evaluate("jenkins.cloud.capacity", gauge)).isNull();
+        assertThat(evaluator.evaluate("jenkins.cloud.capacity", gauge)).isNull();
+        assertThat(evaluator.evaluate("jenkins.cloud.capacity", gauge)).isEqualTo(3);
+        assertThat(evaluator.getSlowGauges()).isEmpty();
+    }
+
+    @Test
+    public void testFastGaugeIsEvaluatedInline() {
+        AtomicInteger evaluations = new AtomicInteger();
+        Gauge<Integer> gauge = evaluations::incrementAndGet;
+        assertThat(evaluator.evaluate("jenkins.queue.size", gauge)).isEqualTo(1);
+        assertThat(evaluator.evaluate("jenkins.queue.size", gauge)).isEqualTo(2);
+        assertThat(evaluator.getSlowGauges()).isEmpty();
+    }
+}
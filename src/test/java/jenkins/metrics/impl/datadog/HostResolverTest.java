@@ -0,0 +1,49 @@
+package jenkins.metrics.impl.datadog;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class HostResolverTest {
+
+    private final HostResolver resolver = new HostResolver();
+
+    @After
+    public void tearDown() {
+        resolver.stop();
+    }
+
+    @Test
+    public void testAddressIsCached() throws Exception {
+        InetAddress address = resolver.resolve("localhost");
+        assertThat(address.isLoopbackAddress()).isTrue();
+        assertThat(resolver.resolve("localhost")).isSameAs(address);
+        assertThat(((Timer) resolver.getMetrics().get("latency")).getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testPrefetchResolvesInBackground() throws Exception {
+        resolver.prefetch("127.0.0.1");
+        Timer latency = (Timer) resolver.getMetrics().get("latency");
+        for (int i = 0; i < 100 && latency.getCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(latency.getCount()).isEqualTo(1);
+        assertThat(resolver.resolve("127.0.0.1").getHostAddress()).isEqualTo("127.0.0.1");
+        assertThat(latency.getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testFailuresAreNotRetriedOnEachCall() {
+        assertThatThrownBy(() -> resolver.resolve("unknown.invalid")).isInstanceOf(UnknownHostException.class);
+        assertThatThrownBy(() -> resolver.resolve("unknown.invalid")).isInstanceOf(UnknownHostException.class);
+        assertThat(((Counter) resolver.getMetrics().get("failures")).getCount()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,229 @@
+package jenkins.metrics.impl.datadog;
+
+import com.codahale.metrics.Counter;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HttpSeriesTransportTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer intake;
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+    // status answered to the next requests, 202 once they are all used
+    private final BlockingQueue<Integer> statuses = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        intake = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        intake.createContext("/api/v1/series", exchange -> {
+            byte[] body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = IOUtils.toByteArray(in);
+            }
+            boolean gzipped = "gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            if (gzipped) {
+                body = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(body)));
+            }
+            requests.add(new Request(new String(body, StandardCharsets.UTF_8), gzipped,
+                    exchange.getRequestHeaders().getFirst("DD-API-KEY"), exchange.getRemoteAddress().getPort()));
+            Integer status = statuses.poll();
+            byte[] response = "{\"status\":\"ok\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status != null ? status : 202, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        intake.start();
+    }
+
+    @After
+    public void tearDown() {
+        intake.stop(0);
+    }
+
+    @Test
+    public void testSeriesArePostedCompressed() throws Exception {
+        HttpSeriesTransport transport = transport(Arrays.asList("env:test", "team:ci"), HttpSeriesTransport.DEFAULT_MAX_PAYLOAD_SIZE, true);
+        transport.begin(1000L);
+        transport.gauge("jenkins.queue.size", 2);
+        transport.gauge("jenkins.job.duration", "folder:team", 1.5);
+        transport.count("jenkins.runs.count", 5);
+        transport.gauge("jenkins.gauge.nan", Double.NaN);
+        transport.sample("jenkins.job.duration", 3.0, AggregationType.DISTRIBUTION, "job:build\u00e9");
+        transport.end();
+
+        Request request = requests.poll(5, TimeUnit.SECONDS);
+        assertThat(request).isNotNull();
+        assertThat(request.gzipped).isTrue();
+        assertThat(request.apiKey).isEqualTo("secret");
+        assertThat(request.body).isEqualTo("{\"series\":["
+                + "{\"metric\":\"jenkins.queue.size\",\"type\":\"gauge\",\"tags\":[\"env:test\",\"team:ci\"],\"points\":[[1000,2]]},"
+                + "{\"metric\":\"jenkins.job.duration\",\"type\":\"gauge\",\"tags\":[\"env:test\",\"team:ci\",\"folder:team\"],\"points\":[[1000,1.5]]},"
+                + "{\"metric\":\"jenkins.runs.count\",\"type\":\"count\",\"tags\":[\"env:test\",\"team:ci\"],\"points\":[[1000,5]]},"
+                + "{\"metric\":\"jenkins.job.duration\",\"type\":\"gauge\",\"tags\":[\"env:test\",\"team:ci\",\"job:build\\u00e9\"],\"points\":[[1000,3.0]]}"
+                + "]}");
+        transport.close();
+        assertThat(transport.getSender().getSent()).isEqualTo(1);
+    }
+
+    @Test
+    public void testCountsCarryTheInterval() throws Exception {
+        HttpSeriesTransport transport = transport(Collections.emptyList(), HttpSeriesTransport.DEFAULT_MAX_PAYLOAD_SIZE, false);
+        transport.begin(1000L, 60);
+        transport.count("jenkins.runs.count", 5);
+        transport.gauge("jenkins.queue.size", 2);
+        transport.end();
+
+        Request request = requests.poll(5, TimeUnit.SECONDS);
+        assertThat(request).isNotNull();
+        assertThat(request.body).isEqualTo("{\"series\":["
+                + "{\"metric\":\"jenkins.runs.count\",\"type\":\"count\",\"interval\":60,\"tags\":[],\"points\":[[1000,5]]},"
+                + "{\"metric\":\"jenkins.queue.size\",\"type\":\"gauge\",\"tags\":[],\"points\":[[1000,2]]}"
+                + "]}");
+        transport.close();
+    }
+
+    @Test
+    public void testReportsAreSplitByPayloadSize() throws Exception {
+        int maxPayloadSize = HttpSeriesTransport.MIN_MAX_PAYLOAD_SIZE;
+        HttpSeriesTransport transport = transport(Collections.emptyList(), maxPayloadSize, false);
+        for (int report = 0; report < 2; report++) {
+            transport.begin(1000L + report);
+            for (int i = 0; i < 200; i++) {
+                transport.gauge("jenkins.job.folder.job" + i + ".duration", i);
+            }
+            transport.end();
+        }
+
+        int series = 0;
+        int posts = 0;
+        Set<Integer> connections = new HashSet<>();
+        Request request;
+        while ((request = requests.poll(1, TimeUnit.SECONDS)) != null) {
+            assertThat(request.gzipped).isFalse();
+            assertThat(request.apiKey).isEqualTo("secret");
+            assertThat(request.body.length()).isLessThanOrEqualTo(maxPayloadSize);
+            assertThat(request.body).startsWith("{\"series\":[{").endsWith("]]}]}");
+            series += request.body.split("\"metric\"").length - 1;
+            posts++;
+            connections.add(request.clientPort);
+        }
+        assertThat(series).isEqualTo(400);
+        // series are around 95 bytes long, so about 43 of them fit in a payload
+        assertThat(posts).isBetween(8, 12);
+        // connections are kept alive between posts
+        assertThat(connections.size()).isLessThan(posts);
+        transport.close();
+    }
+
+    @Test
+    public void testFailedPostsAreRetried() throws Exception {
+        statuses.add(500);
+        statuses.add(429);
+        HttpSeriesTransport transport = transport(Collections.emptyList(), HttpSeriesTransport.DEFAULT_MAX_PAYLOAD_SIZE, true);
+        transport.begin(1000L);
+        transport.gauge("jenkins.queue.size", 2);
+        transport.end();
+
+        for (int i = 0; i < 3; i++) {
+            Request request = requests.poll(5, TimeUnit.SECONDS);
+            assertThat(request).isNotNull();
+            assertThat(request.body).contains("\"jenkins.queue.size\"");
+        }
+        transport.close();
+        assertThat(transport.getSender().getSent()).isEqualTo(1);
+        assertThat(transport.getSender().getErrors()).isZero();
+        assertThat(((Counter) transport.getMetrics().get("retries")).getCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testRejectedPostsAreDropped() throws Exception {
+        statuses.add(400);
+        HttpSeriesTransport transport = transport(Collections.emptyList(), HttpSeriesTransport.DEFAULT_MAX_PAYLOAD_SIZE, true);
+        transport.begin(1000L);
+        transport.gauge("jenkins.queue.size", 2);
+        transport.end();
+
+        assertThat(requests.poll(5, TimeUnit.SECONDS)).isNotNull();
+        transport.close();
+        assertThat(requests.poll(100, TimeUnit.MILLISECONDS)).isNull();
+        assertThat(transport.getSender().getSent()).isZero();
+        assertThat(transport.getSender().getDropped()).isEqualTo(1);
+    }
+
+    @Test
+    public void testUnsentSeriesAreReplayedFromTheSpillQueue() throws Exception {
+        for (int i = 0; i < HttpSeriesTransport.MAX_ATTEMPTS; i++) {
+            statuses.add(503);
+        }
+        URL url = new URL("http://127.0.0.1:" + intake.getAddress().getPort() + "/api/v1/series");
+        SpillQueue spill = new SpillQueue(folder.newFile(), 65536);
+        HttpSeriesTransport transport = new HttpSeriesTransport(url, null, Collections.emptyList(),
+                HttpSeriesTransport.DEFAULT_MAX_PAYLOAD_SIZE, true, AsyncSender.DEFAULT_CAPACITY,
+                OverflowPolicy.DROP_OLDEST, 10, spill, 10);
+        transport.begin(1000L);
+        transport.gauge("jenkins.queue.size", 2);
+        transport.end();
+        for (int i = 0; i < HttpSeriesTransport.MAX_ATTEMPTS; i++) {
+            assertThat(requests.poll(5, TimeUnit.SECONDS)).isNotNull();
+        }
+
+        transport.begin(1060L);
+        transport.gauge("jenkins.queue.size", 3);
+        transport.end();
+
+        Request request = requests.poll(5, TimeUnit.SECONDS);
+        assertThat(request).isNotNull();
+        assertThat(request.apiKey).isNull();
+        assertThat(request.body).contains("[[1060,3]]");
+        request = requests.poll(5, TimeUnit.SECONDS);
+        assertThat(request).isNotNull();
+        assertThat(request.body).contains("[[1000,2]]");
+        transport.close();
+        assertThat(spill.isEmpty()).isTrue();
+    }
+
+    private HttpSeriesTransport transport(List<String> tags, int maxPayloadSize, boolean compress) throws Exception {
+        URL url = new URL("http://127.0.0.1:" + intake.getAddress().getPort() + "/api/v1/series");
+        return new HttpSeriesTransport(url, "secret", tags, maxPayloadSize, compress, AsyncSender.DEFAULT_CAPACITY,
+                OverflowPolicy.DROP_OLDEST, 10);
+    }
+
+    private static final class Request {
+        final String body;
+        final boolean gzipped;
+        final String apiKey;
+        final int clientPort;
+
+        Request(String body, boolean gzipped, String apiKey, int clientPort) {
+            this.body = body;
+            this.gzipped = gzipped;
+            this.apiKey = apiKey;
+            this.clientPort = clientPort;
+        }
+    }
+}
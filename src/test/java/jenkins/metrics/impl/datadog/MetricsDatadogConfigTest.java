@@ -1,7 +1,16 @@
 package jenkins.metrics.impl.datadog;
 
 import hudson.util.FormValidation;
+import hudson.util.Secret;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.AggregationRule;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.DatadogHttpEndpoint;
 import jenkins.metrics.impl.datadog.MetricsDatadogConfig.DatadogUdpEndpoint;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.DatadogUdsEndpoint;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.ExpansionOverride;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.ExtractionRule;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.RateClass;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.Tag;
+import jenkins.model.Jenkins;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
@@ -40,4 +49,147 @@ public class MetricsDatadogConfigTest {
         assertThat(reloadedList).isEqualTo(list);
     }
 
+    @Test
+    public void testUdsEndpointRoundTrip() throws Exception {
+        MetricsDatadogConfig config = MetricsDatadogConfig.instanceOrDie();
+        DatadogUdsEndpoint endpoint = new DatadogUdsEndpoint(null, Arrays.asList(new Tag("env", "test")), "/var/run/datadog/dsd.socket");
+        endpoint.setMaxPacketSize(16384);
+        endpoint.setSendTimeout(100);
+        List<MetricsDatadogConfig.DataDogEndpoint> list = Arrays.asList(
+            new DatadogUdpEndpoint(null, null, "localhost", 8125),
+            endpoint
+        );
+        config.setEndpointsList(list);
+        j.configRoundtrip();
+        List<MetricsDatadogConfig.DataDogEndpoint> reloadedList = new MetricsDatadogConfig().getEndpointsList().toList();
+        assertThat(reloadedList).isEqualTo(list);
+    }
+
+    @Test
+    public void testHttpEndpointRoundTrip() throws Exception {
+        MetricsDatadogConfig config = MetricsDatadogConfig.instanceOrDie();
+        DatadogHttpEndpoint endpoint = new DatadogHttpEndpoint(null, Arrays.asList(new Tag("env", "test")), "https://api.datadoghq.eu/api/v1/series");
+        endpoint.setApiKey(Secret.fromString("0123456789abcdef"));
+        endpoint.setMaxPayloadSize(65536);
+        endpoint.setCompress(false);
+        endpoint.setSpillSize(16);
+        List<MetricsDatadogConfig.DataDogEndpoint> list = Arrays.asList(
+            new DatadogHttpEndpoint(null, null, null),
+            endpoint
+        );
+        config.setEndpointsList(list);
+        j.configRoundtrip();
+        List<MetricsDatadogConfig.DataDogEndpoint> reloadedList = new MetricsDatadogConfig().getEndpointsList().toList();
+        assertThat(reloadedList).isEqualTo(list);
+        assertThat(((DatadogHttpEndpoint) reloadedList.get(0)).getUrl()).isEqualTo(HttpSeriesTransport.DEFAULT_URL);
+        assertThat(((DatadogHttpEndpoint) reloadedList.get(1)).getApiKey().getPlainText()).isEqualTo("0123456789abcdef");
+    }
+
+    @Test
+    public void testDoCheckHttpEndpoint() {
+        DatadogHttpEndpoint.DescriptorImpl httpDesc = j.getInstance().getDescriptorByType(DatadogHttpEndpoint.DescriptorImpl.class);
+        assertThat(httpDesc.doCheckUrl("http://localhost:8080/api/v1/series").kind).isEqualTo(FormValidation.Kind.OK);
+        assertThat(httpDesc.doCheckUrl("ftp://localhost/series").kind).isEqualTo(FormValidation.Kind.ERROR);
+        assertThat(httpDesc.doCheckUrl("not a url").kind).isEqualTo(FormValidation.Kind.ERROR);
+        assertThat(httpDesc.doCheckMaxPayloadSize(0).kind).isEqualTo(FormValidation.Kind.OK);
+        assertThat(httpDesc.doCheckMaxPayloadSize(100).kind).isEqualTo(FormValidation.Kind.ERROR);
+    }
+
+    @Test
+    public void testSpillSizeIsClamped() {
+        DatadogHttpEndpoint endpoint = new DatadogHttpEndpoint(null, null, null);
+        endpoint.setSpillSize(2000);
+        assertThat(endpoint.getSpillSize()).isEqualTo(DatadogHttpEndpoint.MAX_SPILL_SIZE);
+        endpoint.setSpillSize(-1);
+        assertThat(endpoint.getSpillSize()).isZero();
+    }
+
+    @Test
+    public void testReportScheduleRoundTrip() throws Exception {
+        MetricsDatadogConfig config = MetricsDatadogConfig.instanceOrDie();
+        DatadogUdpEndpoint endpoint = new DatadogUdpEndpoint(null, null, "localhost", 8125);
+        endpoint.setReportInterval(30);
+        endpoint.setStartupJitter(10);
+        endpoint.setSpreadPhase(true);
+        endpoint.setAdaptiveInterval(true);
+        endpoint.setAdaptiveThreshold(25);
+        endpoint.setSendQueueCapacity(64);
+        endpoint.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+        endpoint.setSkipUnchanged(true);
+        endpoint.setFullRefreshInterval(5);
+        endpoint.setSeriesBudget(500);
+        endpoint.setExpansions("count, p99");
+        endpoint.setExpansionOverrides(Arrays.asList(new ExpansionOverride("http.", "median")));
+        AggregationRule jobs = new AggregationRule("jenkins.job.*.duration");
+        jobs.setTag("job");
+        jobs.setType(AggregationType.HISTOGRAM);
+        jobs.setStatistic("p95");
+        endpoint.setAggregationRules(Arrays.asList(jobs));
+        ExtractionRule nodes = new ExtractionRule("jenkins\\.node\\.([^.]+)\\.(.+)", "jenkins.node.$2", "node:$1");
+        endpoint.setExtractionRules(Arrays.asList(nodes));
+        RateClass queue = new RateClass("jenkins.queue, jenkins.executor", 1);
+        endpoint.setRateClasses(Arrays.asList(queue));
+        config.setEndpointsList(Arrays.asList(endpoint));
+        j.configRoundtrip();
+
+        DatadogUdpEndpoint reloaded = (DatadogUdpEndpoint) new MetricsDatadogConfig().getEndpointsList().get(0);
+        assertThat(reloaded).isEqualTo(endpoint);
+        assertThat(reloaded.getReportInterval()).isEqualTo(30);
+        assertThat(reloaded.getSchedule()).isEqualTo(new ReportSchedule(30, 10, true, true, 25));
+        assertThat(reloaded.getSendQueueCapacity()).isEqualTo(64);
+        assertThat(reloaded.getOverflowPolicy()).isEqualTo(OverflowPolicy.DROP_NEWEST);
+        assertThat(reloaded.isSkipUnchanged()).isTrue();
+        assertThat(reloaded.getFullRefreshInterval()).isEqualTo(5);
+        assertThat(reloaded.getSeriesBudget()).isEqualTo(500);
+        assertThat(reloaded.getExpansions()).isEqualTo("count, p99");
+        assertThat(reloaded.getExpansionOverrides()).containsExactly(new ExpansionOverride("http.", "median"));
+        assertThat(reloaded.getAggregationRules()).containsExactly(jobs);
+        assertThat(reloaded.getExtractionRules()).containsExactly(nodes);
+        assertThat(reloaded.getRateClasses()).containsExactly(queue);
+        assertThat(reloaded.getSchedule(1)).isEqualTo(new ReportSchedule(1, 10, true, true, 25));
+    }
+
+    @Test
+    public void testUdpEndpointBatchesByDefault() {
+        assertThat(new DatadogUdpEndpoint(null, null, "localhost", 8125).isBatchPackets()).isTrue();
+
+        // saved before batching was configurable
+        DatadogUdpEndpoint saved = (DatadogUdpEndpoint) Jenkins.XSTREAM2.fromXML(
+                "<jenkins.metrics.impl.datadog.MetricsDatadogConfig_-DatadogUdpEndpoint>"
+                + "<statsdHost>localhost</statsdHost><port>8125</port>"
+                + "</jenkins.metrics.impl.datadog.MetricsDatadogConfig_-DatadogUdpEndpoint>");
+        assertThat(saved.isBatchPackets()).isTrue();
+    }
+
+    @Test
+    public void testEqualsAndHashCodeAgree() {
+        DatadogUdpEndpoint endpoint = new DatadogUdpEndpoint(null, Arrays.asList(new Tag("env", "test")), "localhost", 8125);
+        DatadogUdpEndpoint same = new DatadogUdpEndpoint(null, Arrays.asList(new Tag("env", "test")), "localhost", 8125);
+        assertThat(same).isEqualTo(endpoint);
+        assertThat(same.hashCode()).isEqualTo(endpoint.hashCode());
+
+        same.setExpansions("count, p99");
+        assertThat(same).isNotEqualTo(endpoint);
+        assertThat(same.hasSameTransport(endpoint)).isTrue();
+        same.setSendQueueCapacity(64);
+        assertThat(same.hasSameTransport(endpoint)).isFalse();
+
+        DatadogUdsEndpoint uds = new DatadogUdsEndpoint(null, null, "/var/run/datadog/dsd.socket");
+        DatadogUdsEndpoint sameUds = new DatadogUdsEndpoint(null, null, "/var/run/datadog/dsd.socket");
+        assertThat(sameUds).isEqualTo(uds);
+        assertThat(sameUds.hashCode()).isEqualTo(uds.hashCode());
+        assertThat(uds.hasSameTransport(endpoint)).isFalse();
+    }
+
+    @Test
+    public void testStatusIsShownOnConfigPage() throws Exception {
+        MetricsDatadogConfig config = MetricsDatadogConfig.instanceOrDie();
+        config.setEndpointsList(Arrays.asList(new DatadogUdpEndpoint(null, null, "localhost", 8125)));
+        config.getRegistry().updateReporters(config.getEndpointsList().toList());
+
+        assertThat(config.getStatus()).extracting(EndpointStatus::getTarget).containsExactly("udp:localhost:8125");
+        String page = j.createWebClient().goTo("configure").getWebResponse().getContentAsString();
+        assertThat(page).contains("udp:localhost:8125");
+    }
+
 }
@@ -0,0 +1,73 @@
+package jenkins.metrics.impl.datadog;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a large registry of histograms and timers into a snapshot, serially with one thread and with a
+ * {@link ParallelCollector} otherwise. Scaling is bounded by the cores of the machine running it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ParallelCollectionBenchmark {
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int threads;
+
+    @Param({"20000"})
+    public int metricCount;
+
+    private Map<String, Metric> metrics;
+    private ParallelCollector collector;
+
+    @Setup
+    public void setup() {
+        MetricRegistry registry = new MetricRegistry();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < metricCount; i++) {
+            if (i % 2 == 0) {
+                Histogram histogram = registry.histogram("jenkins.job.job" + i + ".queue");
+                for (int j = 0; j < 200; j++) histogram.update(random.nextInt(1000));
+            } else {
+                Timer timer = registry.timer("jenkins.job.job" + i + ".duration");
+                for (int j = 0; j < 200; j++) timer.update(random.nextInt(1000), TimeUnit.MILLISECONDS);
+            }
+        }
+        metrics = registry.getMetrics();
+        collector = threads > 1 ? new ParallelCollector(threads, ParallelCollector.DEFAULT_SHARD_SIZE) : null;
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (collector != null) collector.stop();
+    }
+
+    @Benchmark
+    public MetricsSnapshot collect() {
+        MetricsSnapshot snapshot = new MetricsSnapshot(1000L);
+        if (collector != null) {
+            collector.collect(snapshot, metrics);
+        } else {
+            for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+                snapshot.read(entry.getKey(), entry.getValue());
+            }
+        }
+        return snapshot;
+    }
+}
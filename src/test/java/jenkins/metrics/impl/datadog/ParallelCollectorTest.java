@@ -0,0 +1,60 @@
+package jenkins.metrics.impl.datadog;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ParallelCollectorTest {
+
+    private final ParallelCollector collector = new ParallelCollector(4, 10);
+
+    @After
+    public void tearDown() {
+        collector.stop();
+    }
+
+    @Test
+    public void testMetricsAreReadOnceInParallel() {
+        MetricRegistry registry = new MetricRegistry();
+        AtomicInteger evaluations = new AtomicInteger();
+        for (int i = 0; i < 100; i++) {
+            int value = i;
+            registry.register("jenkins.gauge" + i, (Gauge<Integer>) () -> {
+                evaluations.incrementAndGet();
+                return value;
+            });
+            registry.histogram("jenkins.histogram" + i).update(i);
+        }
+        Map<String, Metric> metrics = registry.getMetrics();
+
+        MetricsSnapshot snapshot = new MetricsSnapshot(1000L);
+        collector.collect(snapshot, metrics);
+
+        assertThat(evaluations.get()).isEqualTo(100);
+        for (int i = 0; i < 100; i++) {
+            assertThat(snapshot.getGaugeValue("jenkins.gauge" + i, registry.getGauges().get("jenkins.gauge" + i)))
+                    .isEqualTo(i);
+            assertThat(snapshot.getSample("jenkins.histogram" + i, registry.histogram("jenkins.histogram" + i))
+                    .snapshot.getMax()).isEqualTo(i);
+        }
+        // values come from the snapshot
+        assertThat(evaluations.get()).isEqualTo(100);
+        assertThat(snapshot.getSlowestName()).isNotNull();
+    }
+
+    @Test
+    public void testSmallReportsAreNotSplit() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.register("jenkins.gauge", (Gauge<Integer>) () -> 1);
+        MetricsSnapshot snapshot = new MetricsSnapshot(1000L);
+        collector.collect(snapshot, registry.getMetrics());
+        assertThat(snapshot.getEvaluationNanos()).isZero();
+    }
+}
@@ -0,0 +1,126 @@
+package jenkins.metrics.impl.datadog;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.DatadogUdpEndpoint;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.Tag;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One report of a synthetic registry mixing gauges, counters, meters, histograms and timers, through the reporter
+ * and a datagram transport whose channel discards the packets: reading the metrics, expanding and encoding them,
+ * then packing datagrams. The sender thread is not measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReportSerializationBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int series;
+
+    private FilteredMetricRegistry metrics;
+    private DatadogEndpointReporter reporter;
+    private long timestamp;
+
+    @Setup
+    public void setup() {
+        MetricRegistry registry = syntheticRegistry(series);
+        DatadogUdpEndpoint endpoint = new DatadogUdpEndpoint(null, Arrays.asList(new Tag("env", "prod"),
+                new Tag("team", "ci")), "localhost", 8125);
+        metrics = new FilteredMetricRegistry(registry, MetricFilter.ALL);
+        metrics.attach();
+        reporter = new DatadogEndpointReporter(endpoint, metrics,
+                new DiscardingTransport(endpoint.getMergedTags()), endpoint.getExpansionSelector(),
+                "jenkins.datadog.benchmark");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        metrics.detach();
+        reporter.getTransport().close();
+    }
+
+    @Benchmark
+    public void report() {
+        reporter.report(new MetricsSnapshot(++timestamp));
+    }
+
+    /**
+     * @return a registry of as many metrics, a fifth of each type, named like job metrics
+     */
+    static MetricRegistry syntheticRegistry(int size) {
+        MetricRegistry registry = new MetricRegistry();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < size; i++) {
+            String prefix = "jenkins.job.folder" + (i % 50) + ".job" + i;
+            switch (i % 5) {
+                case 0:
+                    long value = random.nextLong(1000);
+                    registry.register(prefix + ".queue.size", (Gauge<Long>) () -> value);
+                    break;
+                case 1:
+                    Counter counter = registry.counter(prefix + ".runs");
+                    counter.inc(random.nextInt(100));
+                    break;
+                case 2:
+                    Meter meter = registry.meter(prefix + ".builds");
+                    meter.mark(random.nextInt(100));
+                    break;
+                case 3:
+                    Histogram histogram = registry.histogram(prefix + ".tests");
+                    for (int j = 0; j < 50; j++) histogram.update(random.nextInt(1000));
+                    break;
+                default:
+                    Timer timer = registry.timer(prefix + ".duration");
+                    for (int j = 0; j < 50; j++) timer.update(random.nextInt(1000), TimeUnit.MILLISECONDS);
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * Datagram transport with a channel dropping every packet.
+     */
+    private static final class DiscardingTransport extends BatchingDatagramTransport {
+
+        DiscardingTransport(List<String> tags) {
+            super("benchmark", tags, BatchingUdpTransport.LOOPBACK_MAX_PACKET_SIZE, true, AsyncSender.DEFAULT_CAPACITY,
+                    OverflowPolicy.DROP_OLDEST);
+        }
+
+        @Override
+        protected void open() {
+        }
+
+        @Override
+        protected boolean write(ByteBuffer packet) {
+            packet.position(packet.limit());
+            return true;
+        }
+
+        @Override
+        protected void closeChannel() {
+        }
+    }
+}
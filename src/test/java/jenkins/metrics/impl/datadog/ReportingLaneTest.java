@@ -0,0 +1,39 @@
+package jenkins.metrics.impl.datadog;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ReportingLaneTest {
+
+    @Test
+    public void testAdaptiveInterval() {
+        ReportingLane lane = new ReportingLane(new ReportSchedule(60, 0, false, true, 50), null, null, null);
+        assertThat(lane.getPeriod(TimeUnit.SECONDS)).isEqualTo(60);
+
+        lane.adapt(TimeUnit.SECONDS.toNanos(20));
+        assertThat(lane.getPeriod(TimeUnit.SECONDS)).isEqualTo(60);
+
+        // more than 50% of the period
+        lane.adapt(TimeUnit.SECONDS.toNanos(40));
+        assertThat(lane.getPeriod(TimeUnit.SECONDS)).isEqualTo(120);
+        lane.adapt(TimeUnit.SECONDS.toNanos(70));
+        assertThat(lane.getPeriod(TimeUnit.SECONDS)).isEqualTo(240);
+        lane.adapt(TimeUnit.SECONDS.toNanos(200));
+        lane.adapt(TimeUnit.SECONDS.toNanos(400));
+        assertThat(lane.getPeriod(TimeUnit.SECONDS)).isEqualTo(60 * ReportingLane.MAX_ADAPTIVE_FACTOR);
+
+        // no change while the report would take too long with a halved period
+        lane.adapt(TimeUnit.SECONDS.toNanos(100));
+        assertThat(lane.getPeriod(TimeUnit.SECONDS)).isEqualTo(480);
+
+        lane.adapt(TimeUnit.SECONDS.toNanos(1));
+        assertThat(lane.getPeriod(TimeUnit.SECONDS)).isEqualTo(240);
+        lane.adapt(TimeUnit.SECONDS.toNanos(1));
+        lane.adapt(TimeUnit.SECONDS.toNanos(1));
+        lane.adapt(TimeUnit.SECONDS.toNanos(1));
+        assertThat(lane.getPeriod(TimeUnit.SECONDS)).isEqualTo(60);
+    }
+}
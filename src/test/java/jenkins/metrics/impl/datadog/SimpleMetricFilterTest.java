@@ -28,6 +28,39 @@ public class SimpleMetricFilterTest {
         assertThat(mf.matches("jenkins.job.finished", null)).isFalse();
     }
 
+    @Test
+    public void testMatchesOverlappingPrefixes() throws Exception {
+        List<PrefixFilter> prefixFilters = Arrays.asList(
+            new PrefixFilter("jenkins.job.folder1"),
+            new PrefixFilter("jenkins.job"),
+            new PrefixFilter("jenkins.node.b"),
+            new PrefixFilter("jenkins.node.a"),
+            new PrefixFilter("vm"),
+            new PrefixFilter(""),
+            null
+        );
+        SimpleMetricFilter mf = new SimpleMetricFilter(prefixFilters);
+        assertThat(mf.matches("jenkins.job.folder1.duration", null)).isTrue();
+        assertThat(mf.matches("jenkins.job.folder2.duration", null)).isTrue();
+        assertThat(mf.matches("jenkins.jobs", null)).isTrue();
+        assertThat(mf.matches("jenkins.node.a.executors", null)).isTrue();
+        assertThat(mf.matches("jenkins.node.b", null)).isTrue();
+        assertThat(mf.matches("jenkins.node.c", null)).isFalse();
+        assertThat(mf.matches("jenkins.node", null)).isFalse();
+        assertThat(mf.matches("jenkins", null)).isFalse();
+        assertThat(mf.matches("http.requests", null)).isFalse();
+        assertThat(mf.matches("vm", null)).isTrue();
+        // cached results must stay consistent
+        assertThat(mf.matches("jenkins.node.c", null)).isFalse();
+        assertThat(mf.matches("jenkins.job.folder2.duration", null)).isTrue();
+    }
+
+    @Test
+    public void testMatchesWithoutPrefixes() throws Exception {
+        SimpleMetricFilter mf = new SimpleMetricFilter(Arrays.asList(new PrefixFilter("")));
+        assertThat(mf.matches("vm.memory.total", null)).isFalse();
+    }
+
     public void testConfigRoundTrip() throws Exception {
         MetricsDatadogConfig config = MetricsDatadogConfig.instanceOrDie();
         List<PrefixFilter> prefixFilters = Arrays.asList(
@@ -0,0 +1,105 @@
+package jenkins.metrics.impl.datadog;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpillQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testBatchesAreReplayedOldestFirst() throws Exception {
+        SpillQueue queue = new SpillQueue(new File(folder.getRoot(), "spill/endpoint.spill"), 1024);
+        assertThat(queue.peek()).isNull();
+        assertThat(queue.add(bytes("b0"))).isTrue();
+        assertThat(queue.add(bytes("b1"))).isTrue();
+        assertThat(queue.getCount()).isEqualTo(2);
+        assertThat(queue.getUsed()).isEqualTo(12);
+
+        assertThat(drain(queue)).containsExactly("b0", "b1");
+        assertThat(queue.isEmpty()).isTrue();
+        assertThat(queue.getUsed()).isZero();
+        queue.close();
+    }
+
+    @Test
+    public void testOldestBatchesAreEvicted() throws Exception {
+        // room for 3 batches of 10 bytes and their lengths
+        SpillQueue queue = new SpillQueue(folder.newFile(), 45);
+        for (int i = 0; i < 10; i++) {
+            assertThat(queue.add(bytes("batch-000" + i))).isTrue();
+        }
+        assertThat(queue.add(new byte[100])).isFalse();
+
+        // batches wrap around the end of the file
+        assertThat(drain(queue)).containsExactly("batch-0007", "batch-0008", "batch-0009");
+        assertThat(queue.getMetrics()).containsOnlyKeys("spill.batches", "spill.bytes", "spill.spilled",
+                "spill.evicted", "spill.replayed");
+        queue.close();
+    }
+
+    @Test
+    public void testBatchesSurviveRestarts() throws Exception {
+        File file = folder.newFile();
+        SpillQueue queue = new SpillQueue(file, 64);
+        for (int i = 0; i < 6; i++) {
+            queue.add(bytes("b" + i));
+        }
+        queue.peek();
+        queue.remove();
+        queue.close();
+
+        SpillQueue reopened = new SpillQueue(file, 64);
+        assertThat(reopened.isEmpty()).isFalse();
+        assertThat(drain(reopened)).containsExactly("b1", "b2", "b3", "b4", "b5");
+        reopened.add(bytes("b6"));
+        reopened.close();
+
+        // a different size discards the batches
+        SpillQueue resized = new SpillQueue(file, 128);
+        assertThat(drain(resized)).isEmpty();
+        resized.close();
+    }
+
+    @Test
+    public void testCorruptedFileIsReset() throws Exception {
+        File file = folder.newFile();
+        SpillQueue queue = new SpillQueue(file, 64);
+        queue.add(bytes("b0"));
+        queue.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(16);
+            raf.writeLong(-1);
+        }
+
+        SpillQueue reopened = new SpillQueue(file, 64);
+        assertThat(drain(reopened)).isEmpty();
+        assertThat(reopened.add(bytes("b1"))).isTrue();
+        assertThat(drain(reopened)).containsExactly("b1");
+        reopened.close();
+    }
+
+    private static List<String> drain(SpillQueue queue) {
+        List<String> batches = new ArrayList<>();
+        byte[] batch;
+        while ((batch = queue.peek()) != null) {
+            batches.add(new String(batch, StandardCharsets.UTF_8));
+            queue.remove();
+        }
+        return batches;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,46 @@
+package jenkins.metrics.impl.datadog;
+
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.ExtractionRule;
+import jenkins.metrics.impl.datadog.TagExtractor.Extraction;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TagExtractorTest {
+
+    @Test
+    public void testExtract() {
+        TagExtractor extractor = new TagExtractor(Arrays.asList(
+                new ExtractionRule("jenkins\\.job\\.(.+)\\.([^.]+)\\.duration", "jenkins.job.duration",
+                        "folder:$1, job:$2"),
+                new ExtractionRule("jenkins\\.node\\.([^.]+)(\\.online)?\\.(\\w+)", "jenkins.node.$3",
+                        "node:$1,online:$2"),
+                // refers to a missing group, ignored
+                new ExtractionRule("jenkins\\.queue\\.(\\w+)", "jenkins.queue", "queue:$2")));
+
+        Extraction job = extractor.extract("jenkins.job.team/app.build #1.duration");
+        assertThat(job.name).isEqualTo("jenkins.job.duration");
+        assertThat(job.tags).isEqualTo("folder:team/app,job:build__1");
+
+        Extraction node = extractor.extract("jenkins.node.linux.executors");
+        assertThat(node.name).isEqualTo("jenkins.node.executors");
+        assertThat(node.tags).isEqualTo("node:linux");
+        assertThat(extractor.extract("jenkins.node.linux.online.executors").tags)
+                .isEqualTo("node:linux,online:.online");
+
+        assertThat(extractor.extract("jenkins.queue.size")).isNull();
+        assertThat(extractor.extract("jenkins.job.duration")).isNull();
+    }
+
+    @Test
+    public void testValidation() {
+        assertThat(TagExtractor.checkPattern("jenkins\\.job\\.(.+)")).isNull();
+        assertThat(TagExtractor.checkPattern("jenkins\\.job\\.(.+")).isNotNull();
+        assertThat(TagExtractor.maxGroup("folder:$1,job:$12")).isEqualTo(12);
+        assertThat(TagExtractor.maxGroup("jenkins.job.duration")).isEqualTo(0);
+        assertThat(new TagExtractor(Arrays.asList(new ExtractionRule("jenkins.(", "jenkins", null))).isEmpty())
+                .isTrue();
+    }
+}
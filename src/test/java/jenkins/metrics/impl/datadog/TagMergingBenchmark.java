@@ -0,0 +1,76 @@
+package jenkins.metrics.impl.datadog;
+
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.DatadogUdpEndpoint;
+import jenkins.metrics.impl.datadog.MetricsDatadogConfig.Tag;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the endpoint tags: merging them into {@code key:value} strings, as done when a reporter is configured,
+ * and encoding series carrying them, whose tag block is encoded once per configuration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TagMergingBenchmark {
+
+    private static final int SERIES = 1000;
+
+    @Param({"2", "10", "50"})
+    public int tags;
+
+    private final String[] names = new String[SERIES];
+    private DatadogUdpEndpoint endpoint;
+    private List<String> mergedTags;
+    private DogStatsdEncoder encoder;
+
+    @Setup
+    public void setup() {
+        List<Tag> endpointTags = new ArrayList<>();
+        for (int i = 0; i < tags; i++) {
+            endpointTags.add(new Tag("key" + i, "value" + i));
+        }
+        for (int i = 0; i < SERIES; i++) {
+            names[i] = "jenkins.job.folder" + (i % 20) + ".job" + i + ".duration";
+        }
+        endpoint = new DatadogUdpEndpoint(null, endpointTags, "localhost", 8125);
+        mergedTags = endpoint.getMergedTags();
+        encoder = new DogStatsdEncoder(mergedTags, BatchingUdpTransport.LOOPBACK_MAX_PACKET_SIZE);
+    }
+
+    @Benchmark
+    public List<String> mergedTags() {
+        return endpoint.getMergedTags();
+    }
+
+    /**
+     * Check done by transports before each report whose settings changed, to keep their encoder.
+     */
+    @Benchmark
+    public boolean unchangedTags() {
+        return endpoint.getMergedTags().equals(mergedTags);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SERIES)
+    public int taggedSeries() {
+        int length = 0;
+        for (int i = 0; i < SERIES; i++) {
+            ByteBuffer line = encoder.gauge(names[i], i);
+            length += line.remaining();
+        }
+        return length;
+    }
+}
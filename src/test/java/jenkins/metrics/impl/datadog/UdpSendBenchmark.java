@@ -0,0 +1,98 @@
+package jenkins.metrics.impl.datadog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending a report of gauges over UDP to a socket of this host, read by a draining thread: {@code report} measures
+ * the reporting thread only, {@code reportAndSend} also waits for the sender thread to drain its queue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UdpSendBenchmark {
+
+    private static final int SERIES = 1000;
+
+    @Param({"true", "false"})
+    public boolean batch;
+
+    private final String[] names = new String[SERIES];
+    private DatagramSocket agent;
+    private Thread drain;
+    private BatchingUdpTransport transport;
+    private HostResolver resolver;
+    private long timestamp;
+
+    @Setup
+    public void setup() throws IOException {
+        for (int i = 0; i < SERIES; i++) {
+            names[i] = "jenkins.job.folder" + (i % 20) + ".job" + i + ".duration";
+        }
+        agent = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        drain = new Thread(() -> {
+            byte[] data = new byte[BatchingUdpTransport.MAX_PACKET_SIZE];
+            DatagramPacket packet = new DatagramPacket(data, data.length);
+            while (!agent.isClosed()) {
+                try {
+                    agent.receive(packet);
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }, "UDP agent");
+        drain.setDaemon(true);
+        drain.start();
+        resolver = new HostResolver();
+        transport = new BatchingUdpTransport("127.0.0.1", agent.getLocalPort(), Arrays.asList("env:prod", "team:ci"),
+                0, batch, AsyncSender.DEFAULT_CAPACITY, OverflowPolicy.DROP_OLDEST, resolver);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        transport.close();
+        resolver.stop();
+        agent.close();
+        drain.join(1000);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SERIES)
+    public void report() throws IOException {
+        send();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SERIES)
+    public void reportAndSend() throws IOException {
+        AsyncSender sender = transport.getSender();
+        long writes = sender.getWrites().getCount();
+        send();
+        while (sender.getQueueSize() > 0 || sender.getWrites().getCount() == writes) {
+            Thread.yield();
+        }
+    }
+
+    private void send() throws IOException {
+        transport.begin(++timestamp);
+        for (int i = 0; i < SERIES; i++) {
+            transport.gauge(names[i], i * 1.5);
+        }
+        transport.end();
+    }
+}
@@ -0,0 +1,62 @@
+package jenkins.metrics.impl.datadog;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class UnchangedSeriesFilterTest {
+
+    @Test
+    public void testUnchangedValuesAreSkippedUntilRefresh() {
+        UnchangedSeriesFilter filter = new UnchangedSeriesFilter(3);
+
+        filter.begin();
+        assertThat(filter.isRefresh()).isTrue();
+        assertThat(filter.changed("jenkins.queue.size", 2L)).isTrue();
+        assertThat(filter.changed("jenkins.load", 0.5)).isTrue();
+        assertThat(filter.changed(0L)).isTrue();
+        filter.end();
+
+        filter.begin();
+        assertThat(filter.changed("jenkins.queue.size", 2L)).isFalse();
+        assertThat(filter.changed("jenkins.load", 0.75)).isTrue();
+        assertThat(filter.changed(0L)).isFalse();
+        assertThat(filter.changed(1L)).isTrue();
+        filter.end();
+
+        filter.begin();
+        assertThat(filter.changed("jenkins.queue.size", 2L)).isFalse();
+        assertThat(filter.changed("jenkins.load", 0.75)).isFalse();
+        filter.end();
+
+        filter.begin();
+        assertThat(filter.isRefresh()).isTrue();
+        assertThat(filter.changed("jenkins.queue.size", 2L)).isTrue();
+        assertThat(filter.changed("jenkins.load", 0.75)).isTrue();
+        assertThat(filter.changed(0L)).isTrue();
+        filter.end();
+    }
+
+    @Test
+    public void testRemovedSeriesAreForgottenOnRefresh() {
+        UnchangedSeriesFilter filter = new UnchangedSeriesFilter(2);
+        filter.begin();
+        for (int i = 0; i < 10_000; i++) {
+            filter.changed("jenkins.job.job" + i + ".duration", i);
+        }
+        filter.end();
+        assertThat(filter.size()).isEqualTo(10_000);
+
+        filter.begin();
+        for (int i = 0; i < 10_000; i++) {
+            // values are kept while the table grows
+            assertThat(filter.changed("jenkins.job.job" + i + ".duration", i)).isFalse();
+        }
+        filter.end();
+
+        filter.begin();
+        filter.changed("jenkins.job.job1.duration", 1);
+        filter.end();
+        assertThat(filter.size()).isEqualTo(1);
+    }
+}